@@ -0,0 +1,86 @@
+package express.benchmarks;
+
+import express.Express;
+import express.benchmarks.models.BenchDocument;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static nosqlite.Database.collection;
+
+/**
+ * @author Johan Wirén
+ *
+ * Reading a nosqlite collection, comparing a findAsJson route like the
+ * one of the embedded browser with a find() + res.json route. Documents
+ * are written to a temporary database file, and the browser is left off
+ * so nothing else binds a port.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CollectionBenchmark {
+    private static final int PORT = 7411;
+
+    @Param({ "1000" })
+    public int documents;
+
+    private Express app;
+    private Path db;
+
+    @Setup
+    public void setup() throws IOException {
+        db = Files.createTempFile("express-bench", ".db");
+        collection(option -> {
+            option.dbPath = db.toString();
+            option.useBrowser = false;
+        });
+        List<BenchDocument> docs = new ArrayList<>();
+        for (int i = 0; i < documents; i++) docs.add(new BenchDocument("doc " + i, i));
+        collection(BenchDocument.class).save(docs);
+
+        app = new Express();
+        app.get("/rest/:coll", (req, res) -> res.type("application/json").send(collection(req.params("coll")).findAsJson()));
+        app.get("/find/:coll", (req, res) -> res.json(collection(req.params("coll")).find()));
+        app.listen(PORT);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        app.stop();
+        Files.deleteIfExists(db);
+    }
+
+    @State(Scope.Thread)
+    public static class Clients {
+        private LoopbackClient app;
+
+        @Setup
+        public void setup(CollectionBenchmark benchmark) throws IOException {
+            app = new LoopbackClient("localhost", PORT);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            app.close();
+        }
+    }
+
+    @Benchmark
+    public int findAsJson(Clients clients) throws IOException {
+        return clients.app.get("/rest/BenchDocument");
+    }
+
+    @Benchmark
+    public int find(Clients clients) throws IOException {
+        return clients.app.get("/find/BenchDocument");
+    }
+}
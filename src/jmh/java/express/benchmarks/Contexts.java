@@ -0,0 +1,80 @@
+package express.benchmarks;
+
+import io.javalin.http.Context;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author Johan Wirén
+ *
+ * Builds Javalin contexts without a running server
+ */
+public final class Contexts {
+
+    private Contexts() {}
+
+    /**
+     * Creates a Context backed by in-memory servlet stubs
+     *
+     * @param body The request body, may be empty
+     * @return A fresh Context
+     */
+    public static Context create(byte[] body) {
+        Map<String, String> headers = new HashMap<>();
+        HttpServletRequest req = (HttpServletRequest) Proxy.newProxyInstance(
+            Contexts.class.getClassLoader(), new Class[]{ HttpServletRequest.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "getInputStream": return new BytesInputStream(body);
+                    case "getContentLength": return body.length;
+                    case "getMethod": return "GET";
+                    case "getRequestURI": return "/";
+                    case "getContextPath": return "";
+                    case "getCharacterEncoding": return "UTF-8";
+                    case "getAttributeNames":
+                    case "getHeaderNames":
+                    case "getParameterNames": return Collections.emptyEnumeration();
+                    default: return defaultValue(method.getReturnType());
+                }
+            });
+        HttpServletResponse res = (HttpServletResponse) Proxy.newProxyInstance(
+            Contexts.class.getClassLoader(), new Class[]{ HttpServletResponse.class }, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "setContentType": headers.put("Content-Type", (String) args[0]); return null;
+                    case "getContentType": return headers.get("Content-Type");
+                    case "setHeader":
+                    case "addHeader": headers.put((String) args[0], (String) args[1]); return null;
+                    case "getHeader": return headers.get((String) args[0]);
+                    case "getStatus": return 200;
+                    default: return defaultValue(method.getReturnType());
+                }
+            });
+        return new Context(req, res, new HashMap<>());
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        return null;
+    }
+
+    private static class BytesInputStream extends ServletInputStream {
+        private final ByteArrayInputStream in;
+
+        BytesInputStream(byte[] bytes) { in = new ByteArrayInputStream(bytes); }
+
+        @Override public int read() { return in.read(); }
+        @Override public int read(byte[] b, int off, int len) { return in.read(b, off, len); }
+        @Override public boolean isFinished() { return in.available() == 0; }
+        @Override public boolean isReady() { return true; }
+        @Override public void setReadListener(ReadListener readListener) {}
+    }
+}
@@ -0,0 +1,81 @@
+package express.benchmarks;
+
+import express.Express;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Johan Wirén
+ *
+ * Full request path through Express.get over loopback,
+ * with and without compiled routes
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class DispatchBenchmark {
+    private static final int PORT = 7410;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+        @Param({ "javalin", "compiled" })
+        public String routing;
+
+        private Express app;
+
+        @Setup
+        public void setup() {
+            app = new Express();
+            if (routing.equals("compiled")) app.useCompiledRoutes();
+
+            for (int i = 0; i < 50; i++) {
+                int n = i;
+                app.get("/static/route" + n, (req, res) -> res.send("route " + n));
+            }
+            app.get("/hello", (req, res) -> res.send("Hello World"));
+            app.get("/users/:id", (req, res) -> res.send(req.params("id")));
+            app.get("/users/:id/posts/:post", (req, res) -> res.send(req.params("post")));
+            app.listen(PORT);
+        }
+
+        @TearDown
+        public void tearDown() {
+            app.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        private LoopbackClient client;
+
+        @Setup
+        public void setup(Server server) throws IOException {
+            client = new LoopbackClient("localhost", PORT);
+        }
+
+        @TearDown
+        public void tearDown() throws IOException {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public int staticRoute(Client client) throws IOException {
+        return client.client.get("/hello");
+    }
+
+    @Benchmark
+    public int paramRoute(Client client) throws IOException {
+        return client.client.get("/users/42");
+    }
+
+    @Benchmark
+    public int nestedParamRoute(Client client) throws IOException {
+        return client.client.get("/users/42/posts/7");
+    }
+}
@@ -0,0 +1,84 @@
+package express.benchmarks;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Johan Wirén
+ *
+ * Minimal keep-alive HTTP/1.1 client with TCP_NODELAY, so that loopback
+ * benchmarks measure the server instead of Nagle and delayed ACKs
+ */
+public class LoopbackClient implements Closeable {
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+    private final String host;
+
+    public LoopbackClient(String host, int port) throws IOException {
+        this.host = host;
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = socket.getOutputStream();
+    }
+
+    /**
+     * @return The status code, the body is read and discarded
+     */
+    public int get(String path) throws IOException {
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        String statusLine = readLine();
+        int status = Integer.parseInt(statusLine.substring(9, 12));
+        long length = 0;
+        boolean chunked = false;
+        for (String line; !(line = readLine()).isEmpty(); ) {
+            String lower = line.toLowerCase();
+            if (lower.startsWith("content-length:")) length = Long.parseLong(line.substring(15).trim());
+            else if (lower.startsWith("transfer-encoding:") && lower.contains("chunked")) chunked = true;
+        }
+
+        if (!chunked) {
+            skip(length);
+            return status;
+        }
+        for (long size; (size = Long.parseLong(readLine().trim(), 16)) > 0; ) {
+            skip(size);
+            readLine();
+        }
+        readLine();
+        return status;
+    }
+
+    private void skip(long length) throws IOException {
+        while (length > 0) {
+            long skipped = in.skip(length);
+            if (skipped <= 0) {
+                if (in.read() < 0) throw new IOException("Connection closed");
+                skipped = 1;
+            }
+            length -= skipped;
+        }
+    }
+
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c; (c = in.read()) != '\n'; ) {
+            if (c < 0) throw new IOException("Connection closed");
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+}
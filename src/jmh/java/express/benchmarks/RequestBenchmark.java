@@ -0,0 +1,47 @@
+package express.benchmarks;
+
+import express.http.Request;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Johan Wirén
+ *
+ * JSON body parsing in Request
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    public static class User {
+        public String id;
+        public String name;
+        public int age;
+        public String[] tags;
+    }
+
+    private byte[] body;
+
+    @Setup
+    public void setup() {
+        body = "{\"id\":\"user-1\",\"name\":\"John Doe\",\"age\":30,\"tags\":[\"admin\",\"beta\"]}"
+            .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public User bodyAsClass() {
+        return new Request(Contexts.create(body)).body(User.class);
+    }
+
+    @Benchmark
+    public Map bodyAsMap() {
+        return new Request(Contexts.create(body)).body();
+    }
+}
@@ -0,0 +1,75 @@
+package express.benchmarks;
+
+import express.http.MediaType;
+import express.http.Response;
+import io.javalin.http.Context;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Johan Wirén
+ *
+ * Serialization and content type handling in Response
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseBenchmark {
+
+    @State(Scope.Thread)
+    public static class Payload {
+        @Param({ "1", "100" })
+        public int size;
+
+        private List<Map<String, Object>> users;
+
+        @Setup
+        public void setup() {
+            users = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                Map<String, Object> user = new HashMap<>();
+                user.put("id", "user-" + i);
+                user.put("name", "John Doe");
+                user.put("age", 30 + i % 40);
+                user.put("tags", new String[]{ "admin", "beta" });
+                users.add(user);
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Extension {
+        @Param({ "json", "xls", "unknown" })
+        public String extension;
+    }
+
+    @Benchmark
+    public Context json(Payload payload) {
+        Response res = new Response(Contexts.create(new byte[0]));
+        return res.json(payload.users).ctx();
+    }
+
+    @Benchmark
+    public Context sendObject(Payload payload) {
+        Response res = new Response(Contexts.create(new byte[0]));
+        return res.send((Object) payload.users).ctx();
+    }
+
+    @Benchmark
+    public Context type(Extension extension) {
+        Response res = new Response(Contexts.create(new byte[0]));
+        return res.type(extension.extension).ctx();
+    }
+
+    @Benchmark
+    public MediaType getByExtension(Extension extension) {
+        return MediaType.getByExtension(extension.extension);
+    }
+}
@@ -0,0 +1,26 @@
+package express.benchmarks.models;
+
+import nosqlite.annotations.Document;
+import nosqlite.annotations.Id;
+
+/**
+ * @author Johan Wirén
+ */
+@Document
+public class BenchDocument {
+    @Id
+    private String id;
+    private String name;
+    private int index;
+
+    public BenchDocument() {}
+
+    public BenchDocument(String name, int index) {
+        this.name = name;
+        this.index = index;
+    }
+
+    public String getId() { return id; }
+    public String getName() { return name; }
+    public int getIndex() { return index; }
+}
@@ -1,18 +1,38 @@
 package express;
 
 import express.database.Database;
+import express.http.AsyncHttpContextHandler;
+import express.http.AsyncResult;
+import express.http.CompiledRouter;
+import express.http.ConcurrencyLimiter;
+import express.http.Compression;
+import express.http.HandlerExecutor;
 import express.http.HttpContextHandler;
+import express.http.Metrics;
 import express.http.Request;
 import express.http.Response;
+import express.http.ResponseCache;
+import express.http.StaticCache;
+import express.http.StaticFileHandler;
+import express.http.WsCodec;
+import express.http.WsNegotiation;
 import io.javalin.Javalin;
 import io.javalin.core.JavalinConfig;
+import io.javalin.core.compression.CompressionStrategy;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
 import io.javalin.http.sse.SseClient;
 import io.javalin.http.staticfiles.Location;
 import io.javalin.websocket.WsHandler;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.DispatcherType;
+import java.io.IOException;
 import java.nio.file.Path;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -27,6 +47,14 @@ import java.util.function.Consumer;
 public class Express {
     private final Javalin app;
     private final Map<String, Object> locals = new ConcurrentHashMap<>();
+    private CompiledRouter router;
+    private HandlerExecutor executor;
+    private long asyncTimeout;
+    private Compression compression;
+    private Metrics metrics;
+    private ResponseCache responseCache;
+    private ConcurrencyLimiter limiter;
+    private WsNegotiation wsNegotiation;
     
     public static Logger log = LoggerFactory.getLogger(Express.class);
  
@@ -58,10 +86,32 @@ public class Express {
     }
 
     public Express useStatic(String path, Location location) {
+        StaticFileHandler.install(app.config);
         app.config.addStaticFiles(path, location);
         return this;
     }
 
+    /**
+     * Keep hot static files in memory, with gzip and brotli variants
+     * compressed once. Uses up to 64 MB, files above 1 MB are streamed from disk.
+     *
+     * @return The Express instance
+     */
+    public Express useStaticCache() {
+        return useStaticCache(64 * 1024 * 1024);
+    }
+
+    /**
+     * Keep hot static files in memory, within a budget of maxBytes
+     *
+     * @param maxBytes Memory budget for cached files and their compressed variants
+     * @return The Express instance
+     */
+    public Express useStaticCache(long maxBytes) {
+        StaticFileHandler.install(app.config).useCache(new StaticCache(maxBytes, Math.min(maxBytes, 1024 * 1024)));
+        return this;
+    }
+
     /**
      * route 404 to file
      *
@@ -117,31 +167,359 @@ public class Express {
         return this;
     }
 
-    public Express put(String path, HttpContextHandler handler) {
-        app.put(path, ctx -> handler.handle(new Request(ctx), new Response(ctx)));
+    /**
+     * Record request counts, latency and response sizes per route, and serve
+     * them in the Prometheus text format on /metrics. Routes added before the call are recorded too.
+     *
+     * @return The Express instance
+     */
+    public Express useMetrics() {
+        return useMetrics("/metrics");
+    }
+
+    /**
+     * @param path The path to serve the metrics on
+     * @return The Express instance
+     */
+    public Express useMetrics(String path) {
+        if(metrics != null) return this;
+        Metrics metrics = new Metrics();
+        metrics.gauge("express_handler_executor_in_flight", "Handlers running on the handler executor",
+            () -> executor == null ? Double.NaN : executor.inFlight());
+        metrics.gauge("express_handler_executor_queued", "Handlers waiting for a platform thread",
+            () -> executor == null ? Double.NaN : executor.queued());
+        metrics.gauge("express_handler_executor_rejected", "Requests answered with 503 by the handler executor",
+            () -> executor == null ? Double.NaN : executor.rejected());
+        metrics.gauge("express_compression_bytes_saved", "Bytes saved by response compression",
+            () -> compression == null ? Double.NaN : compression.bytesSaved());
+        metrics.gauge("express_compression_cpu_seconds", "CPU time spent compressing responses",
+            () -> compression == null ? Double.NaN : compression.cpuNanos() / 1e9);
+        metrics.gauge("express_concurrency_limit_shed", "Requests answered with 503 by the concurrency limit",
+            () -> limiter == null ? Double.NaN : limiter.shed());
+        metrics.gauge("express_concurrency_limit", "Requests handled at once before new ones wait or get 503",
+            () -> limiter == null ? Double.NaN : limiter.limit());
+        metrics.gauge("express_concurrency_limit_queued", "Requests waiting for a slot under the concurrency limit",
+            () -> limiter == null ? Double.NaN : limiter.queued());
+        metrics.gauge("express_response_cache_hits", "Requests answered from the response cache",
+            () -> responseCache == null ? Double.NaN : responseCache.hits());
+        metrics.gauge("express_response_cache_misses", "Cached routes that ran their handler",
+            () -> responseCache == null ? Double.NaN : responseCache.misses());
+        metrics.gauge("express_response_cache_bytes", "Memory used by cached responses",
+            () -> responseCache == null ? Double.NaN : responseCache.bytes());
+        app.get(path, ctx -> ctx.contentType("text/plain; version=0.0.4; charset=utf-8").result(metrics.scrape()));
+        this.metrics = metrics;
         return this;
     }
 
-    public Express get(String path, HttpContextHandler handler) {
-        app.get(path, ctx -> handler.handle(new Request(ctx), new Response(ctx)));
+    /**
+     * @return The recorded metrics, or null when not in use
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Opt-in to compile routes into a trie when the server starts.
+     * Request and Response views are then reused per thread instead of
+     * allocated per request, so handlers must not keep them after returning.
+     *
+     * @return The Express instance
+     */
+    public Express useCompiledRoutes() {
+        if(router == null) router = new CompiledRouter();
         return this;
     }
 
-    public Express post(String path, HttpContextHandler handler) {
-        app.post(path, ctx -> handler.handle(new Request(ctx), new Response(ctx)));
+    /**
+     * Run handlers on virtual threads when the JDK has them, so blocking
+     * handlers don't hold Jetty threads. Falls back to a pool of 256
+     * platform threads on older JDKs. Call it before adding ws() and sse() handlers.
+     *
+     * @return The Express instance
+     */
+    public Express useVirtualThreads() {
+        return useVirtualThreads(256);
+    }
+
+    /**
+     * Run handlers on virtual threads when the JDK has them
+     *
+     * @param fallbackThreads Platform threads to use when virtual threads are not available
+     * @return The Express instance
+     */
+    public Express useVirtualThreads(int fallbackThreads) {
+        if(executor == null) executor = new HandlerExecutor(app.config, fallbackThreads, 10_000);
         return this;
     }
 
-    public Express patch(String path, HttpContextHandler handler) {
-        app.patch(path, ctx -> handler.handle(new Request(ctx), new Response(ctx)));
+    /**
+     * Handle at most maxConcurrent requests at once. Requests over the limit wait
+     * up to maxQueueMillis for a slot and then get 503. Call it before adding middlewares.
+     *
+     * @param maxConcurrent  Requests handled at once
+     * @param maxQueueMillis Time a request may wait for a slot
+     * @return The Express instance
+     */
+    public Express useConcurrencyLimit(int maxConcurrent, long maxQueueMillis) {
+        return useConcurrencyLimit(new ConcurrencyLimiter(maxConcurrent, maxQueueMillis));
+    }
+
+    /**
+     * Limit concurrent requests with a custom limiter, ex one that adapts to the latency
+     * of the server with new ConcurrencyLimiter(20, 500).adaptive(4, 1000)
+     *
+     * @param limiter The limiter
+     * @return The Express instance
+     */
+    public Express useConcurrencyLimit(ConcurrencyLimiter limiter) {
+        if(this.limiter != null) return this;
+        this.limiter = limiter;
+        app.before(limiter::acquire);
+        app.after(limiter::release);
+        return this;
+    }
+
+    /**
+     * Set the priority of the routes matching the path under the concurrency limit.
+     * Critical routes are never shed, bulk routes are shed first.
+     *
+     * @param path     The path, ex "/health"
+     * @param priority The priority, ex ConcurrencyLimiter.Priority.CRITICAL
+     * @return The Express instance
+     */
+    public Express priority(String path, ConcurrencyLimiter.Priority priority) {
+        if(limiter == null) throw new IllegalStateException("Call useConcurrencyLimit() before setting priorities");
+        limiter.priority(path, priority);
+        return this;
+    }
+
+    /**
+     * @return The concurrency limiter with its in-flight and shed counters, or null when not in use
+     */
+    public ConcurrencyLimiter concurrencyLimiter() {
+        return limiter;
+    }
+
+    /**
+     * Answer requests with bodies larger than maxBytes with 413, before reading them.
+     * Applies to req.body(), req.bodyAsBytes() and req.bodyAsStream(), not to file uploads.
+     *
+     * @param maxBytes The max body size
+     * @return The Express instance
+     */
+    public Express maxBodySize(long maxBytes) {
+        app.before(ctx -> ctx.req.setAttribute(Request.MAX_BODY_SIZE, maxBytes));
+        return this;
+    }
+
+    /**
+     * Override the max body size for the routes matching the path
+     *
+     * @param path     The path, ex "/api/import/*"
+     * @param maxBytes The max body size
+     * @return The Express instance
+     */
+    public Express maxBodySize(String path, long maxBytes) {
+        app.before(path, ctx -> ctx.req.setAttribute(Request.MAX_BODY_SIZE, maxBytes));
+        return this;
+    }
+
+    /**
+     * Time async handlers get to complete before the request is answered
+     * with 504 and their stage is cancelled. Applies to async handlers added after the call.
+     *
+     * @param millis The timeout, 0 for no timeout
+     * @return The Express instance
+     */
+    public Express asyncTimeout(long millis) {
+        asyncTimeout = millis;
+        return this;
+    }
+
+    /**
+     * @return The executor running handlers off Jetty's threads, with its metrics, or null when not in use
+     */
+    public HandlerExecutor handlerExecutor() {
+        return executor;
+    }
+
+    /**
+     * Compress responses with brotli, zstd or gzip, depending on what the client
+     * accepts and what is on the classpath. Only text-like responses of 1 KB
+     * or more are compressed. Replaces Javalin's own compression.
+     *
+     * @return The Express instance
+     */
+    public Express useCompression() {
+        return useCompression(new Compression());
+    }
+
+    /**
+     * Compress responses with a custom default policy
+     *
+     * @param compression The compression, ex new Compression(new Compression.Policy().minSize(512))
+     * @return The Express instance
+     */
+    public Express useCompression(Compression compression) {
+        if(this.compression == null) app.after(ctx -> this.compression.apply(ctx));
+        this.compression = compression;
+        app.config.compressionStrategy(CompressionStrategy.NONE);
+        app.attribute(Compression.class, compression);
+        return this;
+    }
+
+    /**
+     * Override the compression policy for the routes matching the path
+     *
+     * @param path   The path, ex "/api/*"
+     * @param policy The policy, ex Compression.Policy.off()
+     * @return The Express instance
+     */
+    public Express compression(String path, Compression.Policy policy) {
+        app.before(path, ctx -> ctx.req.setAttribute(Compression.POLICY, policy));
+        return this;
+    }
+
+    /**
+     * @return The compression with its byte and CPU time counters, or null when not in use
+     */
+    public Compression compression() {
+        return compression;
+    }
+
+    /**
+     * Cache GET responses in memory, within a budget of maxBytes. Routes are
+     * cached with app.get(path, cache(ttl), handler), the budget defaults to 32 MB.
+     * Calling it again, or after adding cached routes, resizes the same cache.
+     *
+     * @param maxBytes Memory budget for all cached responses
+     * @return The Express instance
+     */
+    public Express useResponseCache(long maxBytes) {
+        if(responseCache != null) responseCache.maxBytes(maxBytes);
+        else responseCache = new ResponseCache(maxBytes);
         return this;
     }
 
+    /**
+     * @return The response cache, to invalidate tags and read its counters
+     */
+    public ResponseCache responseCache() {
+        if(responseCache == null) responseCache = new ResponseCache(32 * 1024 * 1024);
+        return responseCache;
+    }
+
+    public Express put(String path, HttpContextHandler handler) {
+        return addRoute(HandlerType.PUT, path, handler);
+    }
+
+    public Express get(String path, HttpContextHandler handler) {
+        return addRoute(HandlerType.GET, path, handler);
+    }
+
+    /**
+     * Serve the responses of the handler from the response cache, ex
+     * app.get("/users", cache(5000).tags("users"), (req, res) -> ...)
+     *
+     * @param rule How long to cache, and what the response varies on
+     */
+    public Express get(String path, ResponseCache.Rule rule, HttpContextHandler handler) {
+        return addRoute(HandlerType.GET, path, responseCache().wrap(rule, handler));
+    }
+
+    public Express post(String path, HttpContextHandler handler) {
+        return addRoute(HandlerType.POST, path, handler);
+    }
+
+    public Express patch(String path, HttpContextHandler handler) {
+        return addRoute(HandlerType.PATCH, path, handler);
+    }
+
     public Express delete(String path, HttpContextHandler handler) {
-        app.delete(path, ctx -> handler.handle(new Request(ctx), new Response(ctx)));
+        return addRoute(HandlerType.DELETE, path, handler);
+    }
+
+    private Express addRoute(HandlerType method, String path, HttpContextHandler route) {
+        HttpContextHandler handler = instrument(method, path, route);
+        if(router != null) router.add(method, path, handler);
+        else app.addHandler(method, path, ctx -> {
+            if(executor != null) executor.handle(ctx, handler);
+            else handler.handle(new Request(ctx), new Response(ctx));
+        });
+        return this;
+    }
+
+    /**
+     * Async variants complete the request when the returned stage completes,
+     * so no thread waits on slow downstream calls. They are named apart from
+     * get() and friends, since an overload would make (req, res) -> res.send(..) ambiguous.
+     */
+    public Express putAsync(String path, AsyncHttpContextHandler handler) {
+        return addRoute(HandlerType.PUT, path, handler);
+    }
+
+    public Express getAsync(String path, AsyncHttpContextHandler handler) {
+        return addRoute(HandlerType.GET, path, handler);
+    }
+
+    public Express postAsync(String path, AsyncHttpContextHandler handler) {
+        return addRoute(HandlerType.POST, path, handler);
+    }
+
+    public Express patchAsync(String path, AsyncHttpContextHandler handler) {
+        return addRoute(HandlerType.PATCH, path, handler);
+    }
+
+    public Express deleteAsync(String path, AsyncHttpContextHandler handler) {
+        return addRoute(HandlerType.DELETE, path, handler);
+    }
+
+    private Express addRoute(HandlerType method, String path, AsyncHttpContextHandler route) {
+        AsyncHttpContextHandler handler = instrument(method, path, route);
+        long timeout = asyncTimeout;
+        if(router != null) router.add(method, path, handler, timeout);
+        else app.addHandler(method, path, ctx -> {
+            if(executor != null) executor.handle(ctx, offloaded -> handleAsync(offloaded, handler, timeout));
+            else handleAsync(ctx, handler, timeout);
+        });
         return this;
     }
 
+    private void handleAsync(Context ctx, AsyncHttpContextHandler handler, long timeout) throws IOException {
+        Context detached = AsyncResult.detach(ctx, app.config.inner.appAttributes);
+        AsyncResult.respond(ctx, detached, handler.handle(new Request(detached), new Response(detached)), timeout);
+    }
+
+    /**
+     * Every route is wrapped, as useMetrics() may be called after routes were added.
+     * Without metrics this costs one null check per request.
+     */
+    private HttpContextHandler instrument(HandlerType method, String path, HttpContextHandler handler) {
+        Metrics.Route[] route = new Metrics.Route[1];
+        return (req, res) -> {
+            startMetrics(req, method, path, route);
+            handler.handle(req, res);
+        };
+    }
+
+    private AsyncHttpContextHandler instrument(HandlerType method, String path, AsyncHttpContextHandler handler) {
+        Metrics.Route[] route = new Metrics.Route[1];
+        return (req, res) -> {
+            startMetrics(req, method, path, route);
+            return handler.handle(req, res);
+        };
+    }
+
+    /**
+     * @param route Holds the metrics of the route once they have been looked up
+     */
+    private void startMetrics(Request req, HandlerType method, String path, Metrics.Route[] route) {
+        Metrics metrics = this.metrics;
+        if(metrics == null) return;
+        if(route[0] == null) route[0] = metrics.route(method.name(), path);
+        metrics.start(req.ctx(), route[0]);
+    }
+
     public Express use(HttpContextHandler handler) {
         app.before(ctx -> handler.handle(new Request(ctx), new Response(ctx)));
         return this;
@@ -162,15 +540,61 @@ public class Express {
     }
 
     public Express sse(String path, Consumer<SseClient> client) {
-        app.sse(path, client);
+        app.sse(path, sseClient -> {
+            if(executor != null) executor.sse(client).accept(sseClient);
+            else client.accept(sseClient);
+        });
         return this;
     }
 
     public Express ws(String path, Consumer<WsHandler> ws) {
-        app.ws(path, ws);
+        app.ws(path, executor != null ? executor.ws(ws) : ws);
+        return this;
+    }
+
+    /**
+     * Let WebSocket clients pick the message format with Sec-WebSocket-Protocol,
+     * ex new WebSocket(url, ["cbor", "json"]). JSON is always available. Get the
+     * format of a connection with WsCodec.of(ctx). Must be called before listen().
+     *
+     * @param codecs The formats, ex WsCodec.cbor(), WsCodec.messagePack()
+     * @return The Express instance
+     */
+    public Express useWsCodecs(WsCodec... codecs) {
+        WsNegotiation negotiation = wsNegotiation();
+        for(WsCodec codec : codecs) negotiation.codec(codec);
         return this;
     }
 
+    /**
+     * Tune permessage-deflate for WebSockets. Must be called before listen().
+     *
+     * @param enabled               Whether clients may compress messages at all
+     * @param serverContextTakeover Whether the server keeps its compression window between messages
+     * @param clientContextTakeover Whether clients keep their compression window between messages
+     * @return The Express instance
+     */
+    public Express wsCompression(boolean enabled, boolean serverContextTakeover, boolean clientContextTakeover) {
+        wsNegotiation().deflate(enabled)
+            .serverContextTakeover(serverContextTakeover)
+            .clientContextTakeover(clientContextTakeover);
+        return this;
+    }
+
+    /**
+     * @return The filter negotiating WebSocket codecs and compression, installed on first use
+     */
+    public WsNegotiation wsNegotiation() {
+        if(wsNegotiation != null) return wsNegotiation;
+        WsNegotiation negotiation = wsNegotiation = new WsNegotiation();
+        Consumer<ServletContextHandler> previous = app.config.inner.servletContextHandlerConsumer;
+        app.config.configureServletContextHandler(handler -> {
+            if(previous != null) previous.accept(handler);
+            handler.addFilter(new FilterHolder(negotiation), "/*", EnumSet.of(DispatcherType.REQUEST));
+        });
+        return negotiation;
+    }
+
     public List<Object> locals() {
         return (List<Object>) locals.values();
     }
@@ -208,6 +632,9 @@ public class Express {
         if (nosqlite.Database.useWatchers || nosqlite.Database.useBrowser) {
             new Database(this);
         }
+        if(router != null) router.mount(app, executor);
+        // installed last so it wraps any request logger set before, like the one of devLogging()
+        if(metrics != null) metrics.install(app.config);
         app.start(port);
         JavalinUtil.reEnableJavalinLogger();
         Javalin.log.info("Server listening on http://localhost:" + port);
@@ -217,6 +644,9 @@ public class Express {
         if (nosqlite.Database.useWatchers || nosqlite.Database.useBrowser) {
             new Database(this);
         }
+        if(router != null) router.mount(app, executor);
+        // installed last so it wraps any request logger set before, like the one of devLogging()
+        if(metrics != null) metrics.install(app.config);
         app.start(hostname, port);
         JavalinUtil.reEnableJavalinLogger();
         Javalin.log.info("Server listening on http://" + hostname + ":" + port);
@@ -225,6 +655,10 @@ public class Express {
     public void stop() {
         JavalinUtil.disableJavalinLogger();
         app.stop();
+        if(executor != null) executor.shutdown();
+        if(app.config.inner.resourceHandler instanceof StaticFileHandler) {
+            ((StaticFileHandler) app.config.inner.resourceHandler).useCache(null);
+        }
         JavalinUtil.reEnableJavalinLogger();
         Express.log.info("Express has stopped");
     }
@@ -0,0 +1,274 @@
+package express.database;
+
+import nosqlite.utilities.WatchData;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * @author Johan Wirén
+ *
+ * Micro-batches collection changes before they reach the watchers. Changes
+ * are collected per collection until the window has passed or the batch is
+ * full, and are then emitted as one list of WatchData.
+ *
+ * Updates to a document that is already in the batch replace its earlier
+ * state, so a document that changes many times within a window is only
+ * sent once, with its latest state.
+ */
+public class ChangeBatcher {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "express-change-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Batch> batches = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Field> idFieldCache = new ConcurrentHashMap<>();
+    private final Map<String, String> idFields;
+    private final long windowMillis;
+    private final int maxBatchSize;
+    private final BiConsumer<String, List<WatchData>> emit;
+
+    private final AtomicLong emitted = new AtomicLong();
+    private final AtomicLong changes = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong largestBatch = new AtomicLong();
+    private final AtomicLong totalLagMillis = new AtomicLong();
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    /**
+     * @param windowMillis Longest time a change waits before it is emitted
+     * @param maxBatchSize Documents in a batch before it is emitted early
+     * @param idFields     Id field name per collection, used to coalesce updates
+     * @param emit         Receives the collection name and the batched changes
+     */
+    public ChangeBatcher(long windowMillis, int maxBatchSize, Map<String, String> idFields, BiConsumer<String, List<WatchData>> emit) {
+        this.windowMillis = windowMillis;
+        this.maxBatchSize = maxBatchSize;
+        this.idFields = idFields;
+        this.emit = emit;
+    }
+
+    /**
+     * Adds the changed documents, a save of many documents is split into
+     * batches of maxBatchSize
+     */
+    public void add(String coll, WatchData watchData) {
+        if(watchData.data == null || watchData.data.isEmpty()) return;
+        Batch batch = batches.computeIfAbsent(coll, Batch::new);
+        List<List<Change>> full = null;
+        long firstTicket = 0;
+        synchronized (batch) {
+            for(Object doc : watchData.data) {
+                batch.add(watchData.event, doc);
+                if(batch.changes.size() >= maxBatchSize) {
+                    if(full == null) {
+                        full = new ArrayList<>();
+                        firstTicket = batch.generation;
+                    }
+                    full.add(batch.drain());
+                }
+            }
+            if(!batch.changes.isEmpty() && batch.timerGeneration != batch.generation) {
+                long generation = batch.timerGeneration = batch.generation;
+                timer.schedule(() -> flush(batch, generation), windowMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if(full == null) return;
+        for(int i = 0; i < full.size(); i++) emit(batch, full.get(i), firstTicket + i);
+    }
+
+    /**
+     * Emits every pending batch right away
+     */
+    public void flush() {
+        batches.values().forEach(batch -> flush(batch, -1));
+    }
+
+    /**
+     * @param generation The batch the timer was started for, -1 for any
+     */
+    private void flush(Batch batch, long generation) {
+        List<Change> changes;
+        long ticket;
+        synchronized (batch) {
+            if(batch.changes.isEmpty() || (generation >= 0 && generation != batch.generation)) return;
+            ticket = batch.generation;
+            changes = batch.drain();
+        }
+        emit(batch, changes, ticket);
+    }
+
+    /**
+     * Emits the batches of a collection one at a time, in the order they were
+     * drained, so a timer flush and a full batch can't overtake each other
+     *
+     * @param ticket The generation the changes were drained from
+     */
+    private void emit(Batch batch, List<Change> pending, long ticket) {
+        synchronized (batch.emitLock) {
+            boolean interrupted = false;
+            while(batch.emittedGeneration != ticket) {
+                try {
+                    batch.emitLock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            try {
+                emit(batch, pending);
+            } finally {
+                batch.emittedGeneration++;
+                batch.emitLock.notifyAll();
+                if(interrupted) Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void emit(Batch batch, List<Change> pending) {
+        List<WatchData> out = new ArrayList<>();
+        String event = null;
+        List<Object> docs = null;
+        for(Change change : pending) {
+            if(docs == null || !event.equals(change.event)) {
+                event = change.event;
+                docs = new ArrayList<>();
+                WatchData current = new WatchData();
+                current.model = batch.coll;
+                current.event = event;
+                current.data = docs;
+                out.add(current);
+            }
+            docs.add(change.doc);
+        }
+
+        long lag = System.currentTimeMillis() - pending.get(0).at;
+        emitted.incrementAndGet();
+        totalLagMillis.addAndGet(lag);
+        maxLagMillis.accumulateAndGet(lag, Math::max);
+        largestBatch.accumulateAndGet(pending.size(), Math::max);
+        emit.accept(batch.coll, out);
+    }
+
+    /**
+     * @return The id of a document, or null when it has none that can be read
+     */
+    private Object idOf(String coll, Object doc) {
+        String idField = idFields.get(coll);
+        if(idField == null || doc == null) return null;
+        if(doc instanceof Map) return ((Map<?, ?>) doc).get(idField);
+
+        Field field = idFieldCache.computeIfAbsent(doc.getClass(), klass -> {
+            for(Class<?> k = klass; k != null; k = k.getSuperclass()) {
+                try {
+                    Field f = k.getDeclaredField(idField);
+                    f.setAccessible(true);
+                    return f;
+                } catch (NoSuchFieldException ignored) {
+                }
+            }
+            return null;
+        });
+        try {
+            return field == null ? null : field.get(doc);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+
+    public long batches() { return emitted.get(); }
+
+    /**
+     * @return Number of document changes that went into batches
+     */
+    public long changes() { return changes.get(); }
+
+    /**
+     * @return Number of updates that replaced an earlier state of the same document
+     */
+    public long coalesced() { return coalesced.get(); }
+
+    public long largestBatch() { return largestBatch.get(); }
+
+    public double averageBatchSize() {
+        long n = emitted.get();
+        return n == 0 ? 0 : (double) (changes.get() - coalesced.get()) / n;
+    }
+
+    /**
+     * @return Average time from the oldest change in a batch to its emit
+     */
+    public double averageLagMillis() {
+        long n = emitted.get();
+        return n == 0 ? 0 : (double) totalLagMillis.get() / n;
+    }
+
+    public long maxLagMillis() { return maxLagMillis.get(); }
+
+    private class Batch {
+        private final String coll;
+        private List<Change> changes = new ArrayList<>();
+        private Map<Object, Integer> positions = new HashMap<>();
+        private long generation;
+        private long timerGeneration = -1;
+        private final Object emitLock = new Object();
+        private long emittedGeneration;
+
+        Batch(String coll) {
+            this.coll = coll;
+        }
+
+        /**
+         * An update replaces a pending insert or update of the same document,
+         * keeping the earlier position so an insert stays an insert.
+         */
+        void add(String event, Object doc) {
+            ChangeBatcher.this.changes.incrementAndGet();
+            Object id = idOf(coll, doc);
+            if("delete".equals(event)) {
+                if(id != null) positions.remove(id);
+                id = null;
+            } else if(id != null && "update".equals(event)) {
+                Integer position = positions.get(id);
+                if(position != null) {
+                    Change earlier = changes.get(position);
+                    changes.set(position, new Change(earlier.event, doc, earlier.at));
+                    coalesced.incrementAndGet();
+                    return;
+                }
+            }
+            if(id != null) positions.put(id, changes.size());
+            changes.add(new Change(event, doc, System.currentTimeMillis()));
+        }
+
+        List<Change> drain() {
+            List<Change> drained = changes;
+            changes = new ArrayList<>();
+            positions = new HashMap<>();
+            generation++;
+            return drained;
+        }
+    }
+
+    private static class Change {
+        private final String event;
+        private final Object doc;
+        private final long at;
+
+        Change(String event, Object doc, long at) {
+            this.event = event;
+            this.doc = doc;
+            this.at = at;
+        }
+    }
+}
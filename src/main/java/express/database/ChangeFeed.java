@@ -0,0 +1,531 @@
+package express.database;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import express.http.SseHub;
+import express.http.WsCodec;
+import io.javalin.http.sse.SseClient;
+import io.javalin.plugin.json.JavalinJackson;
+import io.javalin.plugin.json.JavalinJson;
+import io.javalin.websocket.WsContext;
+import nosqlite.utilities.WatchData;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static nosqlite.Database.collection;
+
+/**
+ * @author Johan Wirén
+ *
+ * Fans collection changes out to WebSocket watchers. Each collection has
+ * a single watch listener, and every change is serialized once into a
+ * frame shared by all of its watchers.
+ *
+ * Every watcher has a bounded outbound queue drained with non-blocking
+ * writes, one frame in flight at a time. When a slow watcher's queue is
+ * full the oldest frame is dropped, so one slow client never holds up
+ * the others. Closed or failing sessions are removed.
+ *
+ * With batching enabled, changes pass through a ChangeBatcher first and
+ * each frame is a JSON array of WatchData instead of a single one.
+ *
+ * The same frames are sent to server-sent event clients through an SseHub
+ * per topic. Each change gets a sequence number as its event id, so clients
+ * that reconnect with Last-Event-ID only get the changes they missed. The
+ * hub of a collection or a filter is closed on the first change after it
+ * has been without clients for idleHubMillis, so it keeps its replay for
+ * clients that reconnect.
+ *
+ * Watchers can subscribe with a filter, ex "age>30 && name==John", and are
+ * then only sent the changed documents that match it. Watchers with the
+ * same filter share it, and the filters of a topic are kept in an inverted
+ * index, so each changed document is only tested against the filters that
+ * can match it. Watchers that match the same documents share one frame.
+ *
+ * WebSocket watchers get frames in the codec they negotiated, see
+ * WsCodec. A frame is encoded at most once per codec, on first use.
+ */
+public class ChangeFeed {
+    /**
+     * Topic for watchers of all collections
+     */
+    public static final String ALL = "*";
+
+    private final Map<String, Map<String, Watcher>> topics = new ConcurrentHashMap<>();
+    private final Map<String, SseHub> hubs = new ConcurrentHashMap<>();
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final Map<String, FilterIndex<Group>> indexes = new ConcurrentHashMap<>();
+    private final Map<String, Watcher> filtered = new ConcurrentHashMap<>();
+    private final Set<String> watched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final int maxQueuedFrames;
+    private final int replaySize;
+    private long idleHubMillis = 60_000;
+    private ChangeBatcher batcher;
+
+    /**
+     * @param maxQueuedFrames Frames kept per watcher before the oldest are dropped
+     */
+    public ChangeFeed(int maxQueuedFrames) {
+        this(maxQueuedFrames, 1024);
+    }
+
+    /**
+     * @param maxQueuedFrames Frames kept per watcher before the oldest are dropped,
+     *                        or before a slow SSE client is disconnected
+     * @param replaySize      Changes kept per topic for SSE clients that reconnect
+     */
+    public ChangeFeed(int maxQueuedFrames, int replaySize) {
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.replaySize = replaySize;
+    }
+
+    /**
+     * Collects changes per collection for up to windowMillis, or maxBatchSize
+     * documents, and sends them as one array frame
+     *
+     * @param idFields Id field name per collection, used to coalesce updates to the same document
+     */
+    public ChangeFeed useBatching(long windowMillis, int maxBatchSize, Map<String, String> idFields) {
+        batcher = new ChangeBatcher(windowMillis, maxBatchSize, idFields, this::broadcast);
+        return this;
+    }
+
+    /**
+     * @param idleHubMillis Time the SSE hub of a collection or a filter is kept without clients before it is closed
+     */
+    public ChangeFeed idleHubMillis(long idleHubMillis) {
+        this.idleHubMillis = idleHubMillis;
+        return this;
+    }
+
+    /**
+     * @return The batching stage, or null when changes are sent one by one
+     */
+    public ChangeBatcher batcher() { return batcher; }
+
+    /**
+     * Registers the single listener for a collection, if not already done
+     */
+    public void watch(String coll) {
+        if(watched.add(coll)) collection(coll).watch(watchData -> publish(coll, watchData));
+    }
+
+    /**
+     * Subscribes a WebSocket to a collection, or to all collections with ALL
+     */
+    public void subscribe(String topic, WsContext ctx) {
+        if(!topic.equals(ALL)) watch(topic);
+        topics.computeIfAbsent(topic, t -> new ConcurrentHashMap<>())
+            .put(ctx.getSessionId(), new Watcher(topic, ctx.session, WsCodec.of(ctx), null));
+    }
+
+    /**
+     * Subscribes a WebSocket to the changes of a topic matching a filter
+     *
+     * @param filter A filter in the syntax of find(String), or null for all changes
+     * @throws IllegalArgumentException When the filter can't be parsed
+     */
+    public void subscribe(String topic, WsContext ctx, String filter) {
+        if(filter == null) {
+            subscribe(topic, ctx);
+            return;
+        }
+        if(!topic.equals(ALL)) watch(topic);
+        synchronized (this) {
+            Group group = group(topic, filter, null);
+            Watcher watcher = new Watcher(topic, ctx.session, WsCodec.of(ctx), group);
+            group.watchers.add(watcher);
+            Watcher previous = filtered.put(ctx.getSessionId(), watcher);
+            if(previous != null) leave(previous);
+        }
+    }
+
+    /**
+     * @return A handler for app.sse() sending server-sent event clients the changes
+     *         of a collection, or of all collections with ALL
+     */
+    public Consumer<SseClient> sse(String topic) {
+        if(!topic.equals(ALL)) watch(topic);
+        return client -> {
+            // joins under the lock, so the hub can't be released in between
+            synchronized (this) {
+                hubs.computeIfAbsent(topic, t -> new SseHub(replaySize, maxQueuedFrames, 15_000)).accept(client);
+            }
+        };
+    }
+
+    /**
+     * @return A handler for app.sse() sending server-sent event clients the changes
+     *         of a topic matching the filter. Clients with the same filter share a hub.
+     */
+    public Consumer<SseClient> sse(String topic, WatchFilter filter) {
+        if(!topic.equals(ALL)) watch(topic);
+        return client -> {
+            Group group;
+            synchronized (this) {
+                group = group(topic, filter.expression(), filter);
+                if(group.hub == null) group.hub = new SseHub(replaySize, maxQueuedFrames, 15_000);
+                group.joining++;
+            }
+            try {
+                group.hub.accept(client);
+            } finally {
+                synchronized (this) {
+                    group.joining--;
+                }
+            }
+        };
+    }
+
+    /**
+     * @return The group of watchers with the filter, compiling and indexing it if it's new
+     */
+    private synchronized Group group(String topic, String expression, WatchFilter compiled) {
+        String key = topic + "\u0000" + expression.trim();
+        Group group = groups.get(key);
+        if(group != null) return group;
+        sweep();
+        group = new Group(key, topic, compiled != null ? compiled : WatchFilter.compile(expression));
+        groups.put(key, group);
+        indexes.computeIfAbsent(topic, t -> new FilterIndex<>()).add(group, group.filter);
+        return group;
+    }
+
+    /**
+     * Drops the filters no one is subscribed to anymore
+     */
+    private synchronized void sweep() {
+        for(Group group : new ArrayList<>(groups.values())) release(group);
+        hubs.forEach(this::release);
+    }
+
+    /**
+     * Drops a filter without watchers, once its hub has been without clients for idleHubMillis
+     */
+    private synchronized void release(Group group) {
+        if(!group.watchers.isEmpty() || group.joining > 0) return;
+        SseHub hub = group.hub;
+        if(hub != null && (hub.clients() > 0 || hub.idleMillis() < idleHubMillis)) return;
+        if(!groups.remove(group.key, group)) return;
+        FilterIndex<Group> index = indexes.get(group.topic);
+        if(index != null) index.remove(group);
+        if(hub != null) hub.close();
+    }
+
+    /**
+     * Closes the hub of a collection once it has been without clients for idleHubMillis, the one of ALL is kept
+     */
+    private synchronized void release(String topic, SseHub hub) {
+        if(topic.equals(ALL) || hub.clients() > 0 || hub.idleMillis() < idleHubMillis) return;
+        if(hubs.remove(topic, hub)) hub.close();
+    }
+
+    private synchronized void leave(Watcher watcher) {
+        filtered.values().remove(watcher);
+        watcher.group.watchers.remove(watcher);
+        release(watcher.group);
+    }
+
+    public void unsubscribe(String topic, WsContext ctx) {
+        Map<String, Watcher> watchers = topics.get(topic);
+        if(watchers != null) watchers.remove(ctx.getSessionId());
+        Watcher watcher = filtered.get(ctx.getSessionId());
+        if(watcher != null) leave(watcher);
+    }
+
+    public void publish(String coll, WatchData watchData) {
+        if(batcher != null) batcher.add(coll, watchData);
+        else broadcast(coll, watchData);
+    }
+
+    /**
+     * Serializes the change once and queues it for everyone watching the collection
+     */
+    private void broadcast(String coll, Object change) {
+        Map<String, Watcher> watchers = topics.get(coll);
+        Map<String, Watcher> all = topics.get(ALL);
+        SseHub hub = hubs.get(coll);
+        SseHub allHub = hubs.get(ALL);
+        FilterIndex<Group> index = indexes.get(coll);
+        FilterIndex<Group> allIndex = indexes.get(ALL);
+        boolean unfiltered = !isEmpty(watchers) || !isEmpty(all) || hub != null || allHub != null;
+        if(!unfiltered && index == null && allIndex == null) return;
+
+        Frame frame = unfiltered ? new Frame(change) : null;
+        published.incrementAndGet();
+        if(watchers != null) watchers.values().forEach(watcher -> watcher.offer(frame));
+        if(all != null) all.values().forEach(watcher -> watcher.offer(frame));
+        if(hub != null) {
+            hub.publish(frame.json());
+            if(hub.clients() == 0) release(coll, hub);
+        }
+        if(allHub != null) allHub.publish(frame.json());
+        if(index != null || allIndex != null) broadcastFiltered(change, frame, index, allIndex);
+    }
+
+    /**
+     * Tests each changed document against the filters that can match it, and
+     * sends every group the documents it matched. Groups that matched the same
+     * documents get the same frame.
+     */
+    @SuppressWarnings("unchecked")
+    private void broadcastFiltered(Object change, Frame frame, FilterIndex<Group> index, FilterIndex<Group> allIndex) {
+        List<WatchData> changes = change instanceof WatchData
+            ? Collections.singletonList((WatchData) change) : (List<WatchData>) change;
+        ObjectMapper mapper = JavalinJackson.getObjectMapper();
+        Map<Group, BitSet> matched = new HashMap<>();
+        int docs = 0;
+        for(WatchData watchData : changes) {
+            if(watchData.data == null) continue;
+            for(Object data : watchData.data) {
+                JsonNode doc = mapper.valueToTree(data);
+                for(FilterIndex<Group> filters : new FilterIndex[]{ index, allIndex }) {
+                    if(filters == null) continue;
+                    for(Group group : filters.candidates(doc)) {
+                        if(group.filter.matches(doc)) matched.computeIfAbsent(group, g -> new BitSet()).set(docs);
+                    }
+                }
+                docs++;
+            }
+        }
+
+        int total = docs;
+        Map<BitSet, Frame> frames = new HashMap<>();
+        matched.forEach((group, selected) -> {
+            Frame filteredFrame = frame != null && selected.cardinality() == total ? frame
+                : frames.computeIfAbsent(selected, s -> new Frame(select(change, changes, s)));
+            if(!group.send(filteredFrame)) release(group);
+        });
+    }
+
+    /**
+     * @return The change with only the selected documents, in the same shape
+     */
+    private static Object select(Object change, List<WatchData> changes, BitSet selected) {
+        List<WatchData> out = new ArrayList<>();
+        int i = 0;
+        for(WatchData watchData : changes) {
+            if(watchData.data == null) continue;
+            List<Object> data = new ArrayList<>();
+            for(Object doc : watchData.data) {
+                if(selected.get(i++)) data.add(doc);
+            }
+            if(data.isEmpty()) continue;
+            WatchData part = new WatchData();
+            part.model = watchData.model;
+            part.event = watchData.event;
+            part.data = data;
+            out.add(part);
+        }
+        return change instanceof WatchData ? out.get(0) : out;
+    }
+
+    public int subscribers() {
+        return topics.values().stream().mapToInt(Map::size).sum() + filtered.size();
+    }
+
+    public int subscribers(String topic) {
+        Map<String, Watcher> watchers = topics.get(topic);
+        int count = watchers == null ? 0 : watchers.size();
+        for(Watcher watcher : filtered.values()) {
+            if(watcher.topic.equals(topic)) count++;
+        }
+        return count;
+    }
+
+    /**
+     * @return Distinct filters that watchers are subscribed with
+     */
+    public int filters() { return groups.size(); }
+
+    /**
+     * @return Server-sent event clients connected to any topic
+     */
+    public int sseClients() {
+        int clients = hubs.values().stream().mapToInt(SseHub::clients).sum();
+        for(Group group : groups.values()) {
+            SseHub hub = group.hub;
+            if(hub != null) clients += hub.clients();
+        }
+        return clients;
+    }
+
+    /**
+     * @return Number of changes that were serialized and sent out
+     */
+    public long published() { return published.get(); }
+
+    /**
+     * @return Number of frames dropped because a watcher could not keep up
+     */
+    public long dropped() { return dropped.get(); }
+
+    private static boolean isEmpty(Map<String, Watcher> watchers) {
+        return watchers == null || watchers.isEmpty();
+    }
+
+    private void remove(Watcher watcher) {
+        if(watcher.group != null) {
+            leave(watcher);
+            return;
+        }
+        Map<String, Watcher> watchers = topics.get(watcher.topic);
+        if(watchers != null) watchers.values().remove(watcher);
+    }
+
+    /**
+     * The watchers and SSE clients subscribed to a topic with the same filter
+     */
+    private static class Group {
+        private final String key;
+        private final String topic;
+        private final WatchFilter filter;
+        private final Set<Watcher> watchers = ConcurrentHashMap.newKeySet();
+        private volatile SseHub hub;
+        private int joining;
+
+        Group(String key, String topic, WatchFilter filter) {
+            this.key = key;
+            this.topic = topic;
+            this.filter = filter;
+        }
+
+        /**
+         * @return Whether anyone was there to receive it
+         */
+        boolean send(Frame frame) {
+            watchers.forEach(watcher -> watcher.offer(frame));
+            SseHub hub = this.hub;
+            if(hub != null) hub.publish(frame.json());
+            return !watchers.isEmpty() || (hub != null && hub.clients() > 0);
+        }
+    }
+
+    /**
+     * A change, encoded once per codec on first use
+     */
+    private static class Frame {
+        private final Object change;
+        private volatile String json;
+        private Map<WsCodec, byte[]> encoded;
+
+        Frame(Object change) {
+            this.change = change;
+        }
+
+        String json() {
+            String json = this.json;
+            if(json == null) this.json = json = JavalinJson.toJson(change);
+            return json;
+        }
+
+        synchronized byte[] encoded(WsCodec codec) {
+            if(encoded == null) encoded = new HashMap<>(4);
+            return encoded.computeIfAbsent(codec, c -> c.encode(change));
+        }
+    }
+
+    private class Watcher implements WriteCallback {
+        private final String topic;
+        private final Session session;
+        private final WsCodec codec;
+        private final Group group;
+        private final ArrayDeque<Frame> queue = new ArrayDeque<>();
+        private boolean sending;
+        private boolean inSend;
+        private boolean completedInline;
+
+        Watcher(String topic, Session session, WsCodec codec, Group group) {
+            this.topic = topic;
+            this.session = session;
+            this.codec = codec;
+            this.group = group;
+        }
+
+        void offer(Frame frame) {
+            synchronized (this) {
+                if(queue.size() >= maxQueuedFrames) {
+                    queue.poll();
+                    dropped.incrementAndGet();
+                }
+                queue.add(frame);
+                if(sending) return;
+                sending = true;
+            }
+            drain();
+        }
+
+        /**
+         * Sends queued frames one at a time. Writes that complete on the calling
+         * thread continue the loop here instead of recursing from the callback.
+         */
+        private void drain() {
+            while(true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = queue.poll();
+                    if(frame == null) {
+                        sending = false;
+                        return;
+                    }
+                    inSend = true;
+                    completedInline = false;
+                }
+                if(!session.isOpen()) {
+                    close();
+                    return;
+                }
+                try {
+                    if(codec == WsCodec.JSON) session.getRemote().sendString(frame.json(), this);
+                    else codec.send(session, frame.encoded(codec), this);
+                } catch (RuntimeException e) {
+                    close();
+                    return;
+                }
+                synchronized (this) {
+                    inSend = false;
+                    if(!completedInline) return;
+                }
+            }
+        }
+
+        @Override
+        public void writeSuccess() {
+            synchronized (this) {
+                if(inSend) {
+                    completedInline = true;
+                    return;
+                }
+            }
+            drain();
+        }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            close();
+        }
+
+        private void close() {
+            synchronized (this) {
+                queue.clear();
+                sending = false;
+                inSend = false;
+            }
+            remove(this);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package express.database;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.RawValue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import static nosqlite.Database.collection;
+
+/**
+ * @author Johan Wirén
+ *
+ * Iterates a collection one page at a time, so only pageSize documents
+ * are loaded at once. Meant for streaming whole collections to a response
+ * or file with res.stream().
+ *
+ * Pages are read with findAsJson and each document is handed out as its
+ * raw JSON, so nothing is deserialized. With an id field the pages are
+ * ordered by id and each one starts after the last id of the one before,
+ * which keeps every page as cheap as the first and doesn't skip or repeat
+ * documents when the collection changes in between. Without one it falls
+ * back to paging by offset.
+ */
+public class CollectionCursor implements Iterator<Object> {
+    private static final JsonFactory factory = new JsonFactory();
+
+    private final String coll;
+    private final String idField;
+    private final int pageSize;
+    private Page page = Page.EMPTY;
+    private int index;
+    private String lastId;
+    private int offset;
+    private boolean last;
+
+    public CollectionCursor(String coll) {
+        this(coll, null, 1000);
+    }
+
+    public CollectionCursor(String coll, int pageSize) {
+        this(coll, null, pageSize);
+    }
+
+    /**
+     * @param idField The @Id field of the collection, or null to page by offset
+     */
+    public CollectionCursor(String coll, String idField, int pageSize) {
+        this.coll = coll;
+        this.idField = idField;
+        this.pageSize = pageSize;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if(index < page.size) return true;
+        if(last) return false;
+        page = fetch();
+        index = 0;
+        return page.size > 0;
+    }
+
+    /**
+     * @return The document as raw JSON, written as it is by Jackson
+     */
+    @Override
+    public Object next() {
+        if(!hasNext()) throw new NoSuchElementException();
+        return new RawValue(page.document(index++));
+    }
+
+    /**
+     * @return The documents of the next page as comma separated JSON, or null after the last page
+     */
+    String nextPage() {
+        if(last) return null;
+        page = fetch();
+        index = page.size;
+        return page.size == 0 ? null : page.json.substring(page.starts[0], page.ends[page.size - 1]);
+    }
+
+    private Page fetch() {
+        String json;
+        if(idField == null) {
+            json = collection(coll).findAsJson(null, null, pageSize, offset);
+        } else {
+            json = collection(coll).findAsJson(lastId == null ? null : idField + ">" + lastId, idField + "=asc", pageSize, 0);
+        }
+        Page fetched = parse(json, idField, pageSize);
+        offset += fetched.size;
+        if(fetched.lastId != null) lastId = fetched.lastId;
+        // without the id of the last document the next page can't be found
+        last = fetched.size < pageSize || (idField != null && fetched.lastId == null);
+        return fetched;
+    }
+
+    /**
+     * Finds where each document of a JSON array starts and ends, and the id
+     * of the last one, with a streaming parser that doesn't build the documents
+     */
+    static Page parse(String json, String idField, int expected) {
+        if(json == null) return Page.EMPTY;
+        Page page = new Page(json, Math.max(expected, 1));
+        try (JsonParser parser = factory.createParser(json)) {
+            if(parser.nextToken() != JsonToken.START_ARRAY) return Page.EMPTY;
+            JsonToken token;
+            while((token = parser.nextToken()) != null && token != JsonToken.END_ARRAY) {
+                int start = (int) parser.getTokenLocation().getCharOffset();
+                String id = null;
+                if(token == JsonToken.START_OBJECT) {
+                    while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String field = parser.getCurrentName();
+                        JsonToken value = parser.nextToken();
+                        if(value.isScalarValue() && field.equals(idField)) id = parser.getText();
+                        else parser.skipChildren();
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+                page.add(start, (int) parser.getCurrentLocation().getCharOffset(), id);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return page;
+    }
+
+    static class Page {
+        static final Page EMPTY = new Page("", 1);
+
+        final String json;
+        int[] starts;
+        int[] ends;
+        int size;
+        String lastId;
+
+        Page(String json, int capacity) {
+            this.json = json;
+            this.starts = new int[capacity];
+            this.ends = new int[capacity];
+        }
+
+        void add(int start, int end, String id) {
+            if(size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                ends = Arrays.copyOf(ends, size * 2);
+            }
+            starts[size] = start;
+            ends[size] = end;
+            size++;
+            lastId = id;
+        }
+
+        String document(int i) {
+            return json.substring(starts[i], ends[i]);
+        }
+    }
+}
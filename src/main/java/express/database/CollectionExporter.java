@@ -0,0 +1,165 @@
+package express.database;
+
+import express.Express;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * @author Johan Wirén
+ *
+ * Exports collections as JSON by copying the raw JSON pages from
+ * findAsJson straight to the output, so no document is deserialized.
+ * Pages are read by id like CollectionCursor does, so a live collection
+ * is exported without skipped or repeated documents.
+ *
+ * Exports to file run as background jobs, one at a time, and are written
+ * to a temporary file that replaces the target when complete. The same
+ * writer streams a download directly to a response.
+ */
+public class CollectionExporter {
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "express-collection-export");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Job> jobs = new ConcurrentHashMap<>();
+    private final int pageSize;
+    private final Map<String, String> idFields;
+
+    public CollectionExporter(int pageSize) {
+        this(pageSize, Collections.emptyMap());
+    }
+
+    /**
+     * @param idFields Id field name per collection, collections without one are paged by offset
+     */
+    public CollectionExporter(int pageSize, Map<String, String> idFields) {
+        this.pageSize = pageSize;
+        this.idFields = idFields;
+    }
+
+    /**
+     * Writes the whole collection as a JSON array
+     *
+     * @param gzip Compress the output with gzip
+     * @return Number of bytes of JSON written, before compression
+     */
+    public long write(String coll, OutputStream out, boolean gzip) throws IOException {
+        return write(coll, out, gzip, new AtomicLong());
+    }
+
+    private long write(String coll, OutputStream target, boolean gzip, AtomicLong written) throws IOException {
+        OutputStream out = gzip ? new GZIPOutputStream(target, 64 * 1024) : target;
+        out.write('[');
+        written.incrementAndGet();
+        boolean first = true;
+        CollectionCursor cursor = new CollectionCursor(coll, idFields.get(coll), pageSize);
+        String page;
+        while((page = cursor.nextPage()) != null) {
+            if(!first) {
+                out.write(',');
+                written.incrementAndGet();
+            }
+            byte[] bytes = page.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes);
+            written.addAndGet(bytes.length);
+            first = false;
+        }
+        out.write(']');
+        written.incrementAndGet();
+        if(gzip) ((GZIPOutputStream) out).finish();
+        out.flush();
+        return written.get();
+    }
+
+    /**
+     * Starts exporting the collection to file in the background, unless an
+     * export of it is already running
+     *
+     * @return The running or started job
+     */
+    public Job start(String coll, Path file, boolean gzip) {
+        return jobs.compute(coll, (name, running) -> {
+            if(running != null && running.state == State.RUNNING) return running;
+            Job job = new Job(coll, file, gzip);
+            executor.execute(() -> run(job));
+            return job;
+        });
+    }
+
+    /**
+     * @return The latest export job of the collection, or null when there has been none
+     */
+    public Job status(String coll) {
+        return jobs.get(coll);
+    }
+
+    private void run(Job job) {
+        job.startedAt = System.currentTimeMillis();
+        Path tmp = job.file.resolveSibling(job.file.getFileName() + ".tmp");
+        try {
+            if(job.file.getParent() != null) Files.createDirectories(job.file.getParent());
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024)) {
+                write(job.coll, out, job.gzip, job.bytes);
+            }
+            Files.move(tmp, job.file, StandardCopyOption.REPLACE_EXISTING);
+            job.state = State.DONE;
+        } catch (Exception e) {
+            Express.log.warn("Export of " + job.coll + " failed", e);
+            job.error = e.getMessage();
+            job.state = State.FAILED;
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignored) {
+            }
+        } finally {
+            job.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    public enum State { RUNNING, DONE, FAILED }
+
+    public static class Job {
+        private final String coll;
+        private final Path file;
+        private final boolean gzip;
+        private final AtomicLong bytes = new AtomicLong();
+        private volatile State state = State.RUNNING;
+        private volatile String error;
+        private volatile long startedAt;
+        private volatile long finishedAt;
+
+        Job(String coll, Path file, boolean gzip) {
+            this.coll = coll;
+            this.file = file;
+            this.gzip = gzip;
+        }
+
+        public String getCollection() { return coll; }
+        public String getFile() { return file.toString(); }
+        public boolean isGzip() { return gzip; }
+        public State getState() { return state; }
+        public String getError() { return error; }
+
+        /**
+         * @return Bytes of JSON written so far, before compression
+         */
+        public long getBytes() { return bytes.get(); }
+        public long getStartedAt() { return startedAt; }
+        public long getFinishedAt() { return finishedAt; }
+    }
+}
@@ -0,0 +1,92 @@
+package express.database;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.exc.MismatchedInputException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static nosqlite.Database.collection;
+
+/**
+ * @author Johan Wirén
+ *
+ * Imports a JSON array of documents into a collection without reading the
+ * whole file first. Documents are parsed one at a time from the token
+ * stream straight into the model class, and saved in chunks of chunkSize
+ * with one save call per chunk, so memory use stays the same whatever the
+ * size of the file.
+ *
+ * Chunks saved before a parse error stay saved.
+ */
+public class CollectionImporter {
+    private final ObjectMapper mapper;
+    private final Class<?> klass;
+    private final int chunkSize;
+    private final AtomicLong imported = new AtomicLong();
+    private final AtomicLong chunks = new AtomicLong();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private volatile long totalBytes = -1;
+    private volatile boolean done;
+
+    public CollectionImporter(ObjectMapper mapper, Class<?> klass, int chunkSize) {
+        this.mapper = mapper;
+        this.klass = klass;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads either a JSON array of documents or a single document
+     *
+     * @param in         The JSON input, not closed by the importer
+     * @param totalBytes Size of the input for progress reporting, -1 when unknown
+     * @return Number of imported documents
+     */
+    public long importFrom(InputStream in, long totalBytes) throws IOException {
+        this.totalBytes = totalBytes;
+        try (JsonParser parser = mapper.getFactory().createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+            JsonToken token = parser.nextToken();
+            if(token == null) return 0;
+
+            List<Object> chunk = new ArrayList<>(chunkSize);
+            if(token == JsonToken.START_OBJECT) {
+                chunk.add(mapper.readValue(parser, klass));
+            } else if(token == JsonToken.START_ARRAY) {
+                while((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+                    if(token == null) throw MismatchedInputException.from(parser, klass, "Unexpected end of JSON array");
+                    chunk.add(mapper.readValue(parser, klass));
+                    if(chunk.size() >= chunkSize) {
+                        save(chunk);
+                        bytesRead.set(parser.getCurrentLocation().getByteOffset());
+                        chunk = new ArrayList<>(chunkSize);
+                    }
+                }
+            } else {
+                throw MismatchedInputException.from(parser, klass, "Expected a JSON array of documents");
+            }
+            if(!chunk.isEmpty()) save(chunk);
+            bytesRead.set(parser.getCurrentLocation().getByteOffset());
+            return imported.get();
+        } finally {
+            done = true;
+        }
+    }
+
+    private void save(List<Object> chunk) {
+        collection(klass).save(chunk);
+        imported.addAndGet(chunk.size());
+        chunks.incrementAndGet();
+    }
+
+    public long imported() { return imported.get(); }
+    public long chunks() { return chunks.get(); }
+    public long bytesRead() { return bytesRead.get(); }
+    public long totalBytes() { return totalBytes; }
+    public boolean isDone() { return done; }
+}
@@ -1,22 +1,27 @@
 package express.database;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException;
 import express.Express;
 import express.JavalinUtil;
+import express.database.processor.DocumentIndexProcessor;
+import express.http.JsonStream;
 import io.javalin.http.UploadedFile;
 import io.javalin.http.staticfiles.Location;
-import io.javalin.websocket.WsContext;
 import nosqlite.annotations.Document;
 import nosqlite.annotations.Id;
+import org.eclipse.jetty.websocket.api.StatusCode;
 import org.reflections8.Reflections;
 
 import java.io.*;
 import java.lang.reflect.Field;
+import java.net.URL;
+import java.security.CodeSource;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import static nosqlite.Database.collection;
 
@@ -25,8 +30,47 @@ import static nosqlite.Database.collection;
  *
  */
 public class Database {
-    private static List<WsContext> clients = new CopyOnWriteArrayList<>();
-    private static Map<String, List<WsContext>> clientsMap = new ConcurrentHashMap<>();
+    /**
+     * Frames queued per watcher before the oldest are dropped for slow clients
+     */
+    public static int maxQueuedFrames = 1024;
+
+    /**
+     * Milliseconds to collect changes before sending them as one array frame, 0 sends every change right away
+     */
+    public static long batchWindowMillis = 0;
+
+    /**
+     * Documents in a batch before it is sent early
+     */
+    public static int maxBatchSize = 500;
+
+    /**
+     * Changes kept per collection for SSE watchers that reconnect with Last-Event-ID
+     */
+    public static int sseReplaySize = 1024;
+
+    /**
+     * Documents saved per save call when importing JSON through the browser
+     */
+    public static int importChunkSize = 1000;
+
+    /**
+     * Memory budget of the query cache, see queryCache()
+     */
+    public static long queryCacheBytes = 32 * 1024 * 1024;
+
+    /**
+     * Collections with more documents are streamed by the browser instead of cached
+     */
+    public static int maxCachedDocuments = 10_000;
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private static final String WATCH_FILTER = "express.watch.filter";
+    private static final Map<String, CollectionImporter> imports = new ConcurrentHashMap<>();
+    private static CollectionExporter exporter;
+    private static ChangeFeed changeFeed;
+    private static QueryCache queryCache;
     private static Express app;
     private static Express express;
 
@@ -36,31 +80,101 @@ public class Database {
     }
 
     private static void init() {
-        Reflections reflections = new Reflections();
-        Set<Class<?>> klasses = reflections.getTypesAnnotatedWith(Document.class);
+        queryCache = new QueryCache(queryCacheBytes);
         Map<String, Class<?>> collNames = new HashMap<>();
         Map<String, String> idFields = new HashMap<>();
+        if(!loadIndex(collNames, idFields)) scanClasspath(collNames, idFields);
 
-        klasses.forEach(klass -> {
-            String klassName = klass.getSimpleName();
-            if(!klass.getPackage().getName().contains("test_entities")) {
-                collNames.putIfAbsent(klassName, klass);
+        if (nosqlite.Database.useWatchers) watchCollections(collNames, idFields);
+        if (nosqlite.Database.useBrowser) initBrowser(collNames, idFields);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if(express != null) express.stop();
+        }));
+    }
+
+    /**
+     * Reads the @Document classes listed by DocumentIndexProcessor at compile time
+     *
+     * @return false when there is no index on the classpath, or only ones that
+     * came with dependencies and not with the application's own classes
+     */
+    private static boolean loadIndex(Map<String, Class<?>> collNames, Map<String, String> idFields) {
+        ClassLoader loader = Thread.currentThread().getContextClassLoader();
+        if(loader == null) loader = Database.class.getClassLoader();
+        Map<String, String> index = new TreeMap<>();
+        String root = applicationRoot(loader);
+        boolean covered = root == null;
+        try {
+            Enumeration<URL> urls = loader.getResources(DocumentIndexProcessor.INDEX);
+            while(urls.hasMoreElements()) {
+                URL url = urls.nextElement();
+                String location = url.toString();
+                if(root != null && (location.startsWith(root) || location.startsWith("jar:" + root))) covered = true;
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+                    DocumentIndexProcessor.parse(reader, index);
+                }
             }
-    
+        } catch (IOException e) {
+            Express.log.warn("Could not read " + DocumentIndexProcessor.INDEX + ", scanning the classpath instead", e);
+            return false;
+        }
+        if(index.isEmpty()) return false;
+        if(!covered) {
+            Express.log.warn("No " + DocumentIndexProcessor.INDEX + " next to the application's classes at " + root
+                + ", scanning the classpath instead. Add DocumentIndexProcessor as an annotation processor to skip the scan.");
+            return false;
+        }
+
+        for(Map.Entry<String, String> entry : index.entrySet()) {
+            try {
+                Class<?> klass = Class.forName(entry.getKey(), false, loader);
+                addCollection(klass, entry.getValue().isEmpty() ? null : entry.getValue(), collNames, idFields);
+            } catch (ClassNotFoundException | LinkageError e) {
+                // stale entry from a class that has been removed
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return Where the main class was loaded from, or null when it can't be told
+     */
+    private static String applicationRoot(ClassLoader loader) {
+        String command = System.getProperty("sun.java.command");
+        if(command == null || command.trim().isEmpty()) return null;
+        String main = command.trim().split("\\s+")[0];
+        try {
+            if(main.endsWith(".jar")) return new File(main).getAbsoluteFile().toURI().toURL().toString();
+            CodeSource source = Class.forName(main, false, loader).getProtectionDomain().getCodeSource();
+            return source == null || source.getLocation() == null ? null : source.getLocation().toString();
+        } catch (ClassNotFoundException | LinkageError | SecurityException | IOException e) {
+            return null;
+        }
+    }
+
+    private static void scanClasspath(Map<String, Class<?>> collNames, Map<String, String> idFields) {
+        Reflections reflections = new Reflections();
+        Set<Class<?>> klasses = reflections.getTypesAnnotatedWith(Document.class);
+
+        klasses.forEach(klass -> {
+            String idField = null;
             for(Field field : klass.getDeclaredFields()) {
                 if(field.isAnnotationPresent(Id.class)) {
-                    idFields.putIfAbsent(klassName, field.getName());
+                    idField = field.getName();
                     break;
                 }
             }
+            addCollection(klass, idField, collNames, idFields);
         });
+    }
 
-        if (nosqlite.Database.useWatchers) watchCollections(collNames);
-        if (nosqlite.Database.useBrowser) initBrowser(collNames, idFields);
-
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            if(express != null) express.stop();
-        }));
+    private static void addCollection(Class<?> klass, String idField, Map<String, Class<?>> collNames, Map<String, String> idFields) {
+        String klassName = klass.getSimpleName();
+        if(!klass.getPackage().getName().contains("test_entities")) {
+            collNames.putIfAbsent(klassName, klass);
+        }
+        if(idField != null) idFields.putIfAbsent(klassName, idField);
     }
 
     /**
@@ -68,6 +182,7 @@ public class Database {
      */
     private static void initBrowser(Map<String, Class<?>> collNames, Map<String, String> idFields) {
         express = new Express();
+        exporter = new CollectionExporter(1000, idFields);
 
         express.get("/rest/docs", (req, res) -> res.send(BrowserDocumentation.docs));
         
@@ -75,49 +190,113 @@ public class Database {
 
         express.get("/rest/:coll", (req, res) -> {
             String coll = req.params("coll");
-            Map data = new HashMap();
-            data.put(idFields.get(coll), collection(coll).findAsJson());
-            res.json(data);
+            // only registered collections, so any name in the url can't create cache entries and listeners
+            if(!collNames.containsKey(coll)) res.status(404).end("No collection named " + coll);
+            String field = String.valueOf(idFields.get(coll));
+            if(queryCache.count(coll) > maxCachedDocuments) {
+                res.stream(field, new CollectionCursor(coll, idFields.get(coll), 1000));
+                return;
+            }
+            res.type("application/json").send(queryCache.get(coll, "rest\u0000" + field, () -> {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try {
+                    JsonStream.writeArray(out, field, new CollectionCursor(coll, idFields.get(coll), 1000), false);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return new String(out.toByteArray(), StandardCharsets.UTF_8);
+            }));
         });
 
         express.delete("/rest/:coll/:id", (req, res) -> {
             String coll = req.params("coll");
             String id = req.params("id");
             collection(coll).deleteById(id);
+            queryCache.invalidate(coll);
             res.send("OK");
         });
 
         // route to handle json mockdata imports
         express.post("/rest/:coll", (req, res) -> {
+            String coll = req.params("coll");
             UploadedFile file = req.formDataFile("files");
-            ObjectMapper mapper = new ObjectMapper();
-            Object[] objects = mapper.readValue(file.getContent(), Object[].class);
-            Class klass = collNames.get(req.params("coll"));
-            List models = new ArrayList();
+            Class klass = collNames.get(coll);
+            if(klass == null) res.status(404).end("No collection named " + coll);
+            CollectionImporter importer = new CollectionImporter(mapper, klass, importChunkSize);
+            imports.put(coll, importer);
             try {
-                for(Object obj : objects) models.add(mapper.readValue(mapper.writeValueAsBytes(obj), klass));
-            } catch (UnrecognizedPropertyException e) {
+                importer.importFrom(file.getContent(), file.getSize());
+            } catch (JsonProcessingException e) {
                 Express.log.info("Could not convert JSON.", e);
-                res.status(500).end(e.getMessage());
+                res.status(500).end(e.getOriginalMessage() + " (" + importer.imported() + " documents were imported before the error)");
+            } finally {
+                // like the deletes, the chunks saved so far are invalidated without waiting for their watch events
+                queryCache.invalidate(coll);
             }
-            res.json(collection(klass).save(models));
+            Map<String, Object> result = new HashMap<>();
+            result.put("imported", importer.imported());
+            result.put("chunks", importer.chunks());
+            res.json(result);
+        });
+
+        express.get("/api/import-progress/:coll", (req, res) -> {
+            CollectionImporter importer = imports.get(req.params("coll"));
+            Map<String, Object> progress = new HashMap<>();
+            progress.put("imported", importer != null ? importer.imported() : 0);
+            progress.put("bytesRead", importer != null ? importer.bytesRead() : 0);
+            progress.put("totalBytes", importer != null ? importer.totalBytes() : 0);
+            progress.put("done", importer == null || importer.isDone());
+            res.json(progress);
         });
 
         express.delete("/api/drop-collection/:coll", (req, res) -> {
-            res.send(collection(req.params("coll")).delete());
+            String coll = req.params("coll");
+            res.send(collection(coll).delete());
+            queryCache.invalidate(coll);
         });
 
+        express.get("/api/query-cache", (req, res) -> {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("hits", queryCache.hits());
+            stats.put("misses", queryCache.misses());
+            stats.put("hitRatio", queryCache.hitRatio());
+            stats.put("invalidations", queryCache.invalidations());
+            stats.put("entries", queryCache.size());
+            stats.put("usedBytes", queryCache.usedBytes());
+            res.json(stats);
+        });
+
+        // streams the collection straight to the client, add ?gzip=true to compress it
         express.get("/api/export-collection/:coll", (req, res) -> {
             String coll = req.params("coll");
-            List models = collection(coll).find();
-            String path = Paths.get("db/" + coll + ".json").toString();
-            File file = new File(path);
-            file.getParentFile().mkdirs();   // create parent dirs if necessary
-            if(file.exists()) file.delete(); // replace existing file
-            new ObjectMapper().writerWithDefaultPrettyPrinter().writeValue(new File(path), models);
-            res.sendFile(Paths.get("db/" + coll + ".json"));
+            if(!collNames.containsKey(coll)) res.status(404).end("No collection named " + coll);
+            boolean gzip = "true".equals(req.query("gzip"));
+            res.attachment(coll + (gzip ? ".json.gz" : ".json"));
+            if(gzip) res.type("application/gzip");
+            exporter.write(coll, res.ctx().res.getOutputStream(), gzip);
         });
 
+        // exports the collection to db/<coll>.json in the background, add ?gzip=true to compress it
+        express.post("/api/export-collection/:coll", (req, res) -> {
+            String coll = req.params("coll");
+            if(!collNames.containsKey(coll)) res.status(404).end("No collection named " + coll);
+            boolean gzip = "true".equals(req.query("gzip"));
+            Path file = Paths.get("db", coll + (gzip ? ".json.gz" : ".json"));
+            Path dir = Paths.get("db").toAbsolutePath().normalize();
+            if(!dir.equals(file.toAbsolutePath().normalize().getParent())) res.status(400).end("Invalid collection name " + coll);
+            res.status(202).json(exporter.start(coll, file, gzip));
+        });
+
+        express.get("/api/export-status/:coll", (req, res) -> {
+            String coll = req.params("coll");
+            if(!collNames.containsKey(coll)) res.status(404).end("No collection named " + coll);
+            CollectionExporter.Job job = exporter.status(coll);
+            if(job == null) res.status(404).end("No export of " + coll);
+            res.json(job);
+        });
+
+        express.useStaticCache();
+        express.useCompression();
         express.useStatic("/public", Location.CLASSPATH);
     
         JavalinUtil.startingServer = false;
@@ -126,30 +305,67 @@ public class Database {
         Express.log.info("Browse collections at http://localhost:" + 9595);
     }
 
-    private static void watchCollections(Map<String, Class<?>> collNames) {
+    private static void watchCollections(Map<String, Class<?>> collNames, Map<String, String> idFields) {
+        changeFeed = new ChangeFeed(maxQueuedFrames, sseReplaySize);
+        if(batchWindowMillis > 0) changeFeed.useBatching(batchWindowMillis, maxBatchSize, idFields);
+        collNames.keySet().forEach(changeFeed::watch);
+
         app.ws("/watch-collections", ws -> {
-            ws.onConnect(ctx -> clients.add(ctx));
-            ws.onClose(ctx -> clients.remove(ctx));
-            collNames.keySet().forEach(coll ->
-                collection(coll).watch(watchData ->
-                    clients.stream().filter(client -> client.session.isOpen())
-                    .forEach(client -> client.send(watchData))
-            ));
+            ws.onConnect(ctx -> changeFeed.subscribe(ChangeFeed.ALL, ctx));
+            ws.onClose(ctx -> changeFeed.unsubscribe(ChangeFeed.ALL, ctx));
+            ws.onError(ctx -> changeFeed.unsubscribe(ChangeFeed.ALL, ctx));
         });
-        
+
+        // watchers of a collection may pass ?filter=age>30 to only get the changed documents matching it
         app.ws("/watch-collections/:coll", ws -> {
             ws.onConnect(ctx -> {
-                String coll = ctx.pathParam("coll");
-                clientsMap.putIfAbsent(coll, new CopyOnWriteArrayList<>());
-                clientsMap.get(coll).add(ctx);
-    
-                collection(coll).watch(watchData ->
-                    clientsMap.get(coll).stream().filter(client -> client.session.isOpen())
-                        .forEach(client -> client.send(watchData)));
+                if(!collNames.containsKey(ctx.pathParam("coll"))) {
+                    ctx.session.close(StatusCode.POLICY_VIOLATION, "Unknown collection");
+                    return;
+                }
+                try {
+                    changeFeed.subscribe(ctx.pathParam("coll"), ctx, ctx.queryParam("filter"));
+                } catch (IllegalArgumentException e) {
+                    ctx.session.close(StatusCode.POLICY_VIOLATION, "Invalid filter");
+                }
             });
-            
-            ws.onClose(ctx -> clientsMap.get(ctx.pathParam("coll")).remove(ctx));
+            ws.onClose(ctx -> changeFeed.unsubscribe(ctx.pathParam("coll"), ctx));
+            ws.onError(ctx -> changeFeed.unsubscribe(ctx.pathParam("coll"), ctx));
         });
+
+        // the same feed as server-sent events, for clients sending Accept: text/event-stream
+        app.sse("/watch-collections", changeFeed.sse(ChangeFeed.ALL));
+        app.use("/watch-collections/:coll", (req, res) -> {
+            if(!collNames.containsKey(req.params("coll"))) res.status(404).end("No collection named " + req.params("coll"));
+            String filter = req.query("filter");
+            if(filter == null) return;
+            try {
+                req.ctx().attribute(WATCH_FILTER, WatchFilter.compile(filter));
+            } catch (IllegalArgumentException e) {
+                res.status(400).end(e.getMessage());
+            }
+        });
+        app.sse("/watch-collections/:coll", client -> {
+            WatchFilter filter = client.ctx.attribute(WATCH_FILTER);
+            String coll = client.ctx.pathParam("coll");
+            if(filter != null) changeFeed.sse(coll, filter).accept(client);
+            else changeFeed.sse(coll).accept(client);
+        });
+    }
+
+    /**
+     * @return The feed broadcasting collection changes to watchers, or null when watchers are disabled
+     */
+    public static ChangeFeed changeFeed() {
+        return changeFeed;
+    }
+
+    /**
+     * Read-through cache for collection queries, dropped per collection on every change.
+     * Use it for hot list endpoints, ex Database.queryCache().findAsJson("User", "age>30")
+     */
+    public static QueryCache queryCache() {
+        return queryCache;
     }
 
 }
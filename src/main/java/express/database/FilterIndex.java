@@ -0,0 +1,169 @@
+package express.database;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import express.database.WatchFilter.Condition;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * @author Johan Wirén
+ *
+ * Inverted index over the conditions of watch filters. Each filter is
+ * indexed by a few of its conditions, at least one of which holds for
+ * every document it matches: equality conditions by field and value,
+ * numeric ranges in a sorted map per field. Looking up a document then
+ * costs a hash lookup per indexed field plus the ranges it falls in,
+ * instead of a test of every filter.
+ *
+ * Lookups return candidates, which still have to be tested with
+ * WatchFilter.matches(). Filters without an indexable condition, ex
+ * "name!=John", are always candidates.
+ */
+class FilterIndex<T> {
+    private final Map<String, Field<T>> fields = new HashMap<>();
+    private final Set<T> unindexed = new HashSet<>();
+    private final Map<T, List<Condition>> anchors = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    void add(T value, WatchFilter filter) {
+        List<Condition> conditions = filter.anchors();
+        lock.writeLock().lock();
+        try {
+            if(anchors.containsKey(value) || unindexed.contains(value)) return;
+            if(conditions == null) {
+                unindexed.add(value);
+                return;
+            }
+            anchors.put(value, conditions);
+            for(Condition condition : conditions) {
+                fields.computeIfAbsent(condition.field, f -> new Field<>(condition.path)).add(condition, value);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(T value) {
+        lock.writeLock().lock();
+        try {
+            if(unindexed.remove(value)) return;
+            List<Condition> conditions = anchors.remove(value);
+            if(conditions == null) return;
+            for(Condition condition : conditions) {
+                Field<T> field = fields.get(condition.field);
+                if(field != null && field.remove(condition, value)) fields.remove(condition.field);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Values whose filter may match the document
+     */
+    Set<T> candidates(JsonNode doc) {
+        lock.readLock().lock();
+        try {
+            Set<T> found = new HashSet<>(unindexed);
+            for(Field<T> field : fields.values()) {
+                JsonNode node = WatchFilter.resolve(doc, field.path);
+                if(node != null) field.collect(node, found);
+            }
+            return found;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size() {
+        lock.readLock().lock();
+        try {
+            return anchors.size() + unindexed.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static class Field<T> {
+        private final String[] path;
+        private final Map<String, Set<T>> equal = new HashMap<>();
+        private final Map<String, TreeMap<Double, Set<T>>> ranges = new HashMap<>();
+
+        Field(String[] path) {
+            this.path = path;
+        }
+
+        void add(Condition condition, T value) {
+            if(condition.isRange()) {
+                ranges.computeIfAbsent(condition.op, op -> new TreeMap<>())
+                    .computeIfAbsent(condition.numbers[0], n -> new HashSet<>()).add(value);
+                return;
+            }
+            for(String text : condition.texts) {
+                equal.computeIfAbsent(WatchFilter.key(text), k -> new HashSet<>()).add(value);
+            }
+        }
+
+        /**
+         * @return Whether the field has no conditions left
+         */
+        boolean remove(Condition condition, T value) {
+            if(condition.isRange()) {
+                TreeMap<Double, Set<T>> range = ranges.get(condition.op);
+                if(range != null) {
+                    removeFrom(range, condition.numbers[0], value);
+                    if(range.isEmpty()) ranges.remove(condition.op);
+                }
+            } else {
+                for(String text : condition.texts) removeFrom(equal, WatchFilter.key(text), value);
+            }
+            return equal.isEmpty() && ranges.isEmpty();
+        }
+
+        private static <K, T> void removeFrom(Map<K, Set<T>> map, K key, T value) {
+            Set<T> values = map.get(key);
+            if(values != null && values.remove(value) && values.isEmpty()) map.remove(key);
+        }
+
+        void collect(JsonNode node, Set<T> found) {
+            if(!equal.isEmpty()) {
+                for(String key : WatchFilter.keys(node)) {
+                    Set<T> values = equal.get(key);
+                    if(values != null) found.addAll(values);
+                }
+            }
+            if(!ranges.isEmpty()) collectRanges(node, found);
+        }
+
+        private void collectRanges(JsonNode node, Set<T> found) {
+            if(node.isArray()) {
+                node.forEach(element -> collectRanges(element, found));
+                return;
+            }
+            Double number = WatchFilter.number(node);
+            if(number == null) return;
+            addAll(ranges.get(">"), true, number, false, found);
+            addAll(ranges.get(">="), true, number, true, found);
+            addAll(ranges.get("<"), false, number, false, found);
+            addAll(ranges.get("<="), false, number, true, found);
+        }
+
+        /**
+         * Adds the values of thresholds the number is above (below=true) or under
+         */
+        private static <T> void addAll(TreeMap<Double, Set<T>> range, boolean below, double number, boolean inclusive, Set<T> found) {
+            if(range == null) return;
+            NavigableMap<Double, Set<T>> hits = below ? range.headMap(number, inclusive) : range.tailMap(number, inclusive);
+            for(Collection<T> values : hits.values()) found.addAll(values);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package express.database;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static nosqlite.Database.collection;
+
+/**
+ * @author Johan Wirén
+ *
+ * Read-through cache for collection queries, keyed by collection and
+ * query. Each collection gets a watch listener the first time it is
+ * queried, and every change to it drops the cached results of that
+ * collection only. Results of unchanged collections are a hash lookup
+ * away.
+ *
+ * A query that was running while its collection changed is returned but
+ * not cached, so stale results are never stored. The results are kept in
+ * access order, and the least recently used are dropped from the head
+ * when the cache grows past its budget.
+ */
+public class QueryCache {
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Watched> collections = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    /**
+     * @param maxBytes Memory budget for all cached results, a single result may use an eighth of it
+     */
+    public QueryCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 8;
+    }
+
+    public String findAsJson(String coll) {
+        return get(coll, "find", () -> collection(coll).findAsJson());
+    }
+
+    public String findAsJson(String coll, String filter) {
+        return get(coll, "find\u0000" + filter, () -> collection(coll).findAsJson(filter));
+    }
+
+    public String findAsJson(String coll, String filter, String sort, int limit, int offset) {
+        String query = "find\u0000" + filter + "\u0000" + sort + "\u0000" + limit + "\u0000" + offset;
+        return get(coll, query, () -> collection(coll).findAsJson(filter, sort, limit, offset));
+    }
+
+    public long count(String coll) {
+        return Long.parseLong(get(coll, "count", () -> String.valueOf(collection(coll).count())));
+    }
+
+    /**
+     * Returns the cached result of the query, or loads and caches it
+     *
+     * @param query  Identifies the query within the collection, ex "find\0age>30"
+     * @param loader Runs the query, as JSON
+     */
+    public String get(String coll, String query, Supplier<String> loader) {
+        String key = coll + "\u0001" + query;
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if(entry != null) {
+            hits.incrementAndGet();
+            return entry.json;
+        }
+        misses.incrementAndGet();
+
+        Watched watched = watch(coll);
+        long version = watched.version.get();
+        String json = loader.get();
+        if(json != null && weight(key, json) <= maxEntryBytes) put(key, json, watched, version);
+        return json;
+    }
+
+    /**
+     * @return The version of the collection, listening for its changes before anyone can read it
+     */
+    private Watched watch(String coll) {
+        Watched watched = collections.get(coll);
+        if(watched != null) return watched;
+        return collections.computeIfAbsent(coll, c -> {
+            collection(c).watch(watchData -> invalidate(c));
+            return new Watched();
+        });
+    }
+
+    private void put(String key, String json, Watched watched, long version) {
+        Entry entry = new Entry(key, json, watched);
+        synchronized (entries) {
+            if(watched.version.get() != version) return;
+            Entry previous = entries.put(key, entry);
+            watched.keys.add(key);
+            usedBytes.addAndGet(entry.bytes - (previous != null ? previous.bytes : 0));
+            evict();
+        }
+    }
+
+    /**
+     * Drops all cached results of the collection, called on every change to it
+     */
+    public void invalidate(String coll) {
+        Watched watched = collections.get(coll);
+        if(watched == null) return;
+        synchronized (entries) {
+            watched.version.incrementAndGet();
+            for(String key : watched.keys) {
+                Entry entry = entries.remove(key);
+                if(entry != null) usedBytes.addAndGet(-entry.bytes);
+            }
+            watched.keys.clear();
+        }
+        invalidations.incrementAndGet();
+    }
+
+    public void invalidateAll() {
+        collections.keySet().forEach(this::invalidate);
+    }
+
+    /**
+     * Drops the least recently used results until the cache fits its budget, called holding the lock on entries
+     */
+    private void evict() {
+        Iterator<Entry> oldest = entries.values().iterator();
+        while(usedBytes.get() > maxBytes && oldest.hasNext()) {
+            Entry entry = oldest.next();
+            oldest.remove();
+            entry.watched.keys.remove(entry.key);
+            usedBytes.addAndGet(-entry.bytes);
+        }
+    }
+
+    private static long weight(String key, String json) {
+        return (key.length() + json.length()) * 2L + 64;
+    }
+
+    public long hits() { return hits.get(); }
+    public long misses() { return misses.get(); }
+
+    /**
+     * @return Share of queries answered from the cache, from 0 to 1
+     */
+    public double hitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return Number of collection changes that dropped cached results
+     */
+    public long invalidations() { return invalidations.get(); }
+    public long usedBytes() { return usedBytes.get(); }
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static class Watched {
+        private final AtomicLong version = new AtomicLong();
+        private final Set<String> keys = new HashSet<>();
+    }
+
+    private static class Entry {
+        private final String key;
+        private final String json;
+        private final Watched watched;
+        private final long bytes;
+
+        Entry(String key, String json, Watched watched) {
+            this.key = key;
+            this.json = json;
+            this.watched = watched;
+            this.bytes = weight(key, json);
+        }
+    }
+}
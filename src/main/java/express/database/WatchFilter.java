@@ -0,0 +1,370 @@
+package express.database;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.javalin.plugin.json.JavalinJackson;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * @author Johan Wirén
+ *
+ * A filter for collection watchers, in the same syntax as find(String),
+ * ex "age>30 && name==John". It is parsed once when a watcher subscribes
+ * and then tested against every changed document.
+ *
+ * Supports ==, !=, &gt;, &gt;=, &lt;, &lt;=, =~ (like, with % as wildcard),
+ * in-lists as in "age==[20, 30, 40]", dot-paths to nested fields, &amp;&amp;, ||,
+ * ! and parentheses. Values that are numbers are compared as numbers, and
+ * a field holding an array matches when any of its elements does.
+ */
+public class WatchFilter {
+    private static final Pattern NUMBER = Pattern.compile("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?");
+
+    private final String expression;
+    private final Node root;
+
+    private WatchFilter(String expression, Node root) {
+        this.expression = expression;
+        this.root = root;
+    }
+
+    /**
+     * @throws IllegalArgumentException When the expression can't be parsed
+     */
+    public static WatchFilter compile(String expression) {
+        if(expression == null || expression.trim().isEmpty()) throw new IllegalArgumentException("Empty filter");
+        Parser parser = new Parser(expression);
+        Node root = parser.or();
+        parser.skipSpace();
+        if(parser.pos < expression.length()) throw parser.error("Unexpected '" + expression.charAt(parser.pos) + "'");
+        return new WatchFilter(expression.trim(), root);
+    }
+
+    public String expression() { return expression; }
+
+    public boolean matches(Object doc) {
+        return matches(doc instanceof JsonNode ? (JsonNode) doc : JavalinJackson.getObjectMapper().valueToTree(doc));
+    }
+
+    public boolean matches(JsonNode doc) {
+        return root.test(doc);
+    }
+
+    /**
+     * @return Conditions of which at least one holds for every matching document,
+     *         or null when there is no such set of indexable conditions
+     */
+    List<Condition> anchors() {
+        return root.anchors();
+    }
+
+    @Override
+    public String toString() { return expression; }
+
+    /**
+     * @return The key a value is indexed by, equal for values that are equal to ==
+     */
+    static String key(String text) {
+        return NUMBER.matcher(text).matches() ? new BigDecimal(text).stripTrailingZeros().toPlainString() : text;
+    }
+
+    /**
+     * @return The keys of a document value, one per element for arrays
+     */
+    static List<String> keys(JsonNode node) {
+        if(node == null || node.isNull() || node.isMissingNode()) return Collections.emptyList();
+        if(!node.isArray()) return Collections.singletonList(key(node.asText()));
+        List<String> keys = new ArrayList<>();
+        node.forEach(element -> keys.addAll(keys(element)));
+        return keys;
+    }
+
+    /**
+     * @return The value as a number, or null when it isn't one
+     */
+    static Double number(JsonNode node) {
+        if(node.isNumber()) return node.asDouble();
+        return node.isTextual() && NUMBER.matcher(node.asText()).matches() ? Double.valueOf(node.asText()) : null;
+    }
+
+    /**
+     * @return The value at a dot-path, or null when the document has none
+     */
+    static JsonNode resolve(JsonNode doc, String[] path) {
+        JsonNode node = doc;
+        for(String field : path) {
+            if(node == null) return null;
+            node = node.get(field);
+        }
+        return node == null || node.isNull() ? null : node;
+    }
+
+    private interface Node {
+        boolean test(JsonNode doc);
+        List<Condition> anchors();
+    }
+
+    private static class Or implements Node {
+        private final List<Node> nodes;
+
+        Or(List<Node> nodes) { this.nodes = nodes; }
+
+        @Override
+        public boolean test(JsonNode doc) {
+            for(Node node : nodes) {
+                if(node.test(doc)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public List<Condition> anchors() {
+            List<Condition> anchors = new ArrayList<>();
+            for(Node node : nodes) {
+                List<Condition> some = node.anchors();
+                if(some == null) return null;
+                anchors.addAll(some);
+            }
+            return anchors;
+        }
+    }
+
+    private static class And implements Node {
+        private final List<Node> nodes;
+
+        And(List<Node> nodes) { this.nodes = nodes; }
+
+        @Override
+        public boolean test(JsonNode doc) {
+            for(Node node : nodes) {
+                if(!node.test(doc)) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Any one side will do, equality is preferred as it narrows down the most
+         */
+        @Override
+        public List<Condition> anchors() {
+            List<Condition> best = null;
+            for(Node node : nodes) {
+                List<Condition> some = node.anchors();
+                if(some != null && (best == null || rank(some) < rank(best))) best = some;
+            }
+            return best;
+        }
+
+        private static int rank(List<Condition> anchors) {
+            int rank = anchors.size();
+            for(Condition condition : anchors) {
+                if(!condition.op.equals("==")) rank += 1000;
+            }
+            return rank;
+        }
+    }
+
+    private static class Not implements Node {
+        private final Node node;
+
+        Not(Node node) { this.node = node; }
+
+        @Override
+        public boolean test(JsonNode doc) { return !node.test(doc); }
+
+        @Override
+        public List<Condition> anchors() { return null; }
+    }
+
+    /**
+     * A single comparison of a field, ex "age>30"
+     */
+    static class Condition implements Node {
+        final String field;
+        final String[] path;
+        final String op;
+        final String[] texts;
+        final Double[] numbers;
+        private final Pattern like;
+
+        Condition(String field, String op, List<String> values) {
+            this.field = field;
+            this.path = field.split("\\.");
+            this.op = op;
+            this.texts = values.toArray(new String[0]);
+            this.numbers = new Double[texts.length];
+            for(int i = 0; i < texts.length; i++) {
+                if(NUMBER.matcher(texts[i]).matches()) numbers[i] = Double.valueOf(texts[i]);
+            }
+            this.like = op.equals("=~") ? like(texts[0]) : null;
+        }
+
+        private static Pattern like(String pattern) {
+            StringBuilder regex = new StringBuilder();
+            for(String part : pattern.split("%", -1)) {
+                if(regex.length() > 0) regex.append(".*");
+                regex.append(Pattern.quote(part));
+            }
+            return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+        }
+
+        /**
+         * @return Whether the condition can be looked up in an index
+         */
+        boolean indexable() {
+            return op.equals("==") || (isRange() && numbers[0] != null);
+        }
+
+        boolean isRange() {
+            return op.charAt(0) == '<' || op.charAt(0) == '>';
+        }
+
+        @Override
+        public boolean test(JsonNode doc) {
+            JsonNode node = resolve(doc, path);
+            if(node == null) return false;
+            if(!node.isArray()) return compare(node);
+            for(JsonNode element : node) {
+                if(compare(element)) return true;
+            }
+            return false;
+        }
+
+        private boolean compare(JsonNode node) {
+            switch(op) {
+                case "==": return equalsAny(node);
+                case "!=": return !equalsAny(node);
+                case "=~": return like.matcher(node.asText()).matches();
+                default:
+                    int compared;
+                    Double number = number(node);
+                    if(numbers[0] != null) {
+                        if(number == null) return false;
+                        compared = Double.compare(number, numbers[0]);
+                    } else {
+                        compared = node.asText().compareTo(texts[0]);
+                    }
+                    switch(op) {
+                        case ">": return compared > 0;
+                        case ">=": return compared >= 0;
+                        case "<": return compared < 0;
+                        default: return compared <= 0;
+                    }
+            }
+        }
+
+        private boolean equalsAny(JsonNode node) {
+            Double number = number(node);
+            String text = node.asText();
+            for(int i = 0; i < texts.length; i++) {
+                if(numbers[i] != null && number != null ? numbers[i].doubleValue() == number : texts[i].equals(text)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public List<Condition> anchors() {
+            return indexable() ? Collections.singletonList(this) : null;
+        }
+    }
+
+    private static class Parser {
+        private final String text;
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        Node or() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(and());
+            while(accept("||")) nodes.add(and());
+            return nodes.size() == 1 ? nodes.get(0) : new Or(nodes);
+        }
+
+        Node and() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(unary());
+            while(accept("&&")) nodes.add(unary());
+            return nodes.size() == 1 ? nodes.get(0) : new And(nodes);
+        }
+
+        Node unary() {
+            skipSpace();
+            if(text.startsWith("!", pos) && !text.startsWith("!=", pos)) {
+                pos++;
+                return new Not(unary());
+            }
+            if(accept("(")) {
+                Node node = or();
+                if(!accept(")")) throw error("Missing ')'");
+                return node;
+            }
+            return condition();
+        }
+
+        Node condition() {
+            skipSpace();
+            int start = pos;
+            while(pos < text.length() && "=!<>&|()".indexOf(text.charAt(pos)) < 0) pos++;
+            String field = text.substring(start, pos).trim();
+            if(field.isEmpty()) throw error("Missing field name");
+
+            String op = null;
+            for(String candidate : new String[]{ "==", "!=", ">=", "<=", "=~", ">", "<" }) {
+                if(text.startsWith(candidate, pos)) {
+                    op = candidate;
+                    break;
+                }
+            }
+            if(op == null) throw error("Missing operator after '" + field + "'");
+            pos += op.length();
+
+            start = pos;
+            boolean inList = false;
+            while(pos < text.length()) {
+                char c = text.charAt(pos);
+                if(c == '[') inList = true;
+                else if(c == ']') inList = false;
+                else if(!inList && (c == ')' || text.startsWith("&&", pos) || text.startsWith("||", pos))) break;
+                pos++;
+            }
+            String value = text.substring(start, pos).trim();
+            if(value.isEmpty()) throw error("Missing value after '" + field + op + "'");
+            List<String> values = new ArrayList<>();
+            if(value.startsWith("[") && value.endsWith("]") && (op.equals("==") || op.equals("!="))) {
+                for(String element : value.substring(1, value.length() - 1).split(",")) values.add(unquote(element.trim()));
+            } else {
+                values.add(unquote(value));
+            }
+            return new Condition(field, op, values);
+        }
+
+        private static String unquote(String value) {
+            if(value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'') && value.charAt(value.length() - 1) == value.charAt(0)) {
+                return value.substring(1, value.length() - 1);
+            }
+            return value;
+        }
+
+        boolean accept(String token) {
+            skipSpace();
+            if(!text.startsWith(token, pos)) return false;
+            pos += token.length();
+            return true;
+        }
+
+        void skipSpace() {
+            while(pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at " + pos + " in filter \"" + text + "\"");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package express.database.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.TypeElement;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * @author Johan Wirén
+ *
+ * Writes every class annotated with @Document, together with the name of
+ * its @Id field, to META-INF/express/documents.index at compile time. The
+ * Database reads the index at startup instead of scanning the classpath.
+ *
+ * Entries from an existing index in the output directory are kept, so
+ * incremental builds that only recompile some classes keep the others.
+ * The entries of recompiled classes are replaced, so a class that lost its
+ * annotation leaves the index. The processor runs for every compilation for
+ * that reason, not only the ones with @Document classes in them.
+ */
+public class DocumentIndexProcessor extends AbstractProcessor {
+    public static final String INDEX = "META-INF/express/documents.index";
+
+    private static final String DOCUMENT = "nosqlite.annotations.Document";
+    private static final String ID = "nosqlite.annotations.Id";
+
+    private final Map<String, String> documents = new TreeMap<>();
+    // every class compiled in this build, annotated or not
+    private final Set<String> compiled = new HashSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton("*");
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        if(roundEnv.processingOver()) {
+            if(!compiled.isEmpty()) writeIndex();
+            return false;
+        }
+        for(Element root : roundEnv.getRootElements()) compiled(root);
+        TypeElement document = processingEnv.getElementUtils().getTypeElement(DOCUMENT);
+        if(document == null) return false;
+        for(Element element : roundEnv.getElementsAnnotatedWith(document)) {
+            if(!element.getKind().isClass()) continue;
+            TypeElement type = (TypeElement) element;
+            documents.put(processingEnv.getElementUtils().getBinaryName(type).toString(), idField(type));
+        }
+        return false;
+    }
+
+    private void compiled(Element element) {
+        if(!element.getKind().isClass() && !element.getKind().isInterface()) return;
+        compiled.add(processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString());
+        for(Element member : element.getEnclosedElements()) compiled(member);
+    }
+
+    private static String idField(TypeElement type) {
+        for(Element member : type.getEnclosedElements()) {
+            if(member.getKind() != ElementKind.FIELD) continue;
+            for(AnnotationMirror mirror : member.getAnnotationMirrors()) {
+                if(mirror.getAnnotationType().toString().equals(ID)) return member.getSimpleName().toString();
+            }
+        }
+        return "";
+    }
+
+    private void writeIndex() {
+        Map<String, String> index = new TreeMap<>();
+        try {
+            FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+                parse(reader, index);
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // no index from an earlier build
+        }
+        boolean dropped = index.keySet().removeAll(compiled);
+        if(documents.isEmpty() && !dropped) return;
+        index.putAll(documents);
+
+        try {
+            FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", INDEX);
+            try (Writer writer = new OutputStreamWriter(file.openOutputStream(), StandardCharsets.UTF_8)) {
+                for(Map.Entry<String, String> entry : index.entrySet()) {
+                    writer.write(entry.getKey() + "=" + entry.getValue() + "\n");
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, "Could not write " + INDEX + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads index lines of the form className=idField, where idField is empty when the class has none
+     */
+    public static void parse(BufferedReader reader, Map<String, String> index) throws IOException {
+        for(String line; (line = reader.readLine()) != null; ) {
+            line = line.trim();
+            int eq = line.indexOf('=');
+            if(line.isEmpty() || line.startsWith("#") || eq <= 0) continue;
+            index.put(line.substring(0, eq), line.substring(eq + 1));
+        }
+    }
+}
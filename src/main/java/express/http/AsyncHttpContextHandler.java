@@ -0,0 +1,15 @@
+package express.http;
+
+import java.io.IOException;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * @author Johan Wirén
+ *
+ * A handler that answers later. The request is completed when the returned
+ * stage completes, without holding a thread while waiting for it.
+ */
+@FunctionalInterface
+public interface AsyncHttpContextHandler {
+    CompletionStage<?> handle(Request req, Response res) throws IOException;
+}
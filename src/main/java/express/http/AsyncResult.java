@@ -0,0 +1,166 @@
+package express.http;
+
+import io.javalin.http.Context;
+import io.javalin.http.GatewayTimeoutResponse;
+import io.javalin.http.HandlerType;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJson;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * @author Johan Wirén
+ *
+ * The future handed to Javalin for a request that completes later. It follows
+ * the stage returned by a handler and turns its value into the response:
+ * null or the Response itself keeps what the handler set on res, Strings,
+ * bytes and streams are sent as they are and other objects as JSON.
+ *
+ * Exceptions from the stage reach the exception mappers like thrown ones,
+ * so res.end() works inside callbacks too. When the request times out or
+ * Jetty reports the client gone, the stage is cancelled.
+ */
+public class AsyncResult extends CompletableFuture<Object> implements AsyncListener {
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "express-async-timeout");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final HttpServletRequest req;
+    private volatile CompletableFuture<?> source;
+
+    public AsyncResult(HttpServletRequest req) {
+        this.req = req;
+    }
+
+    /**
+     * Gives a handler a Context of its own over the same request and response.
+     * Callbacks that set its result then can't race Javalin, which reads the
+     * result of the original Context when the handler returns.
+     */
+    public static Context detach(Context ctx, Map<Class<?>, Object> appAttributes) {
+        HttpServletRequest req = ctx.req instanceof DetachedRequest ? ctx.req : new DetachedRequest(ctx.req);
+        return ContextUtil.init(req, ctx.res, ctx.matchedPath(), ctx.pathParamMap(),
+            HandlerType.Companion.fromServletRequest(ctx.req), appAttributes, ctx.splats());
+    }
+
+    /**
+     * Completes the request with the stage returned by an async handler
+     *
+     * @param detached      The Context the handler was given, from detach()
+     * @param timeoutMillis Answer 504 and cancel the stage after this long, 0 for no timeout
+     */
+    public static void respond(Context ctx, Context detached, CompletionStage<?> stage, long timeoutMillis) {
+        if(stage == null) {
+            if(detached.resultFuture() != null) ctx.result(detached.resultFuture());
+            else if(detached.resultStream() != null) ctx.result(detached.resultStream());
+            return;
+        }
+        AsyncResult result = new AsyncResult(ctx.req).follow(stage, detached);
+        if(timeoutMillis > 0) result.timeout(timeoutMillis);
+        ctx.result(result);
+    }
+
+    /**
+     * Completes with the value of the stage, and cancels the stage if this completes first
+     *
+     * @param ctx The context the handler wrote to, used when the stage completes with null
+     */
+    public AsyncResult follow(CompletionStage<?> stage, Context ctx) {
+        CompletableFuture<?> followed = stage.toCompletableFuture();
+        source = followed;
+        followed.whenComplete((value, e) -> {
+            if(source != followed) return;
+            if(e != null) {
+                completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+                return;
+            }
+            try {
+                complete(toResult(value, ctx));
+            } catch (Throwable t) {
+                completeExceptionally(t);
+            }
+        });
+        return this;
+    }
+
+    private static Object toResult(Object value, Context ctx) {
+        if(value == null || value instanceof Response) {
+            InputStream current = ctx.resultStream();
+            return current != null ? current : "";
+        }
+        if(value instanceof String || value instanceof InputStream) return value;
+        if(value instanceof byte[]) return new ByteArrayInputStream((byte[]) value);
+        ctx.contentType("application/json");
+        return JavalinJson.toJson(value);
+    }
+
+    public AsyncResult timeout(long millis) {
+        ScheduledFuture<?> task = timer.schedule(() ->
+            completeExceptionally(new GatewayTimeoutResponse("Request timed out")), millis, TimeUnit.MILLISECONDS);
+        whenComplete((value, e) -> task.cancel(false));
+        return this;
+    }
+
+    /**
+     * Cancels the followed stage before anything waiting on this runs
+     */
+    @Override
+    public boolean completeExceptionally(Throwable e) {
+        CompletableFuture<?> followed = source;
+        source = null;
+        if(followed != null && !followed.isDone()) followed.cancel(true);
+        return super.completeExceptionally(e);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        CompletableFuture<?> followed = source;
+        source = null;
+        if(followed != null && !followed.isDone()) followed.cancel(mayInterruptIfRunning);
+        return super.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * Javalin calls this right after it has put the request in async mode,
+     * which is the first chance to listen for timeouts and disconnects
+     */
+    @Override
+    public CompletableFuture<Object> exceptionally(Function<Throwable, ?> fn) {
+        if(req.isAsyncStarted()) req.getAsyncContext().addListener(this);
+        return super.exceptionally(fn);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        completeExceptionally(new GatewayTimeoutResponse("Request timed out"));
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        completeExceptionally(event.getThrowable() != null ? event.getThrowable() : new CompletionException("Client disconnected", null));
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        cancel(true);
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+}
@@ -0,0 +1,350 @@
+package express.http;
+
+import io.javalin.Javalin;
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import io.javalin.http.JavalinResponseWrapper;
+import io.javalin.http.NotFoundResponse;
+import io.javalin.http.ResponseWrapperContext;
+import io.javalin.http.staticfiles.ResourceHandler;
+import io.javalin.http.util.ContextUtil;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Johan Wirén
+ *
+ * Opt-in router that compiles the routes registered through Express into
+ * a trie per HTTP method when the server starts. Fully static paths are
+ * resolved with a single hash lookup, parametric paths walk the trie with
+ * static segments hashed at every level.
+ *
+ * Like Javalin, the first added route that matches wins. A static route an
+ * earlier parametric route already matches is dropped when compiling, and
+ * the trie walk keeps the earliest match, skipping the branches that only
+ * hold routes added after it.
+ *
+ * Each Jetty thread reuses one Request and one Response view, so a compiled
+ * handler must not keep req or res after it returns. Async handlers get views
+ * of their own, since their callbacks use them after the dispatch returns.
+ */
+public class CompiledRouter {
+    private static final ThreadLocal<Views> views = ThreadLocal.withInitial(Views::new);
+
+    private final Map<HandlerType, Map<String, Route>> staticRoutes = new EnumMap<>(HandlerType.class);
+    private final Map<HandlerType, Node> trees = new EnumMap<>(HandlerType.class);
+    private final List<Route> routes = new ArrayList<>();
+    private JavalinConfig config;
+    private boolean ignoreTrailingSlashes = true;
+    private boolean compiled;
+
+    public CompiledRouter add(HandlerType method, String path, HttpContextHandler handler) {
+        if(compiled) throw new IllegalStateException("Routes are already compiled, add them before listen()");
+        routes.add(new Route(method, path, handler, null, 0, routes.size()));
+        return this;
+    }
+
+    /**
+     * @param timeoutMillis Answer 504 when the handler's stage takes longer, 0 for no timeout
+     */
+    public CompiledRouter add(HandlerType method, String path, AsyncHttpContextHandler handler, long timeoutMillis) {
+        if(compiled) throw new IllegalStateException("Routes are already compiled, add them before listen()");
+        routes.add(new Route(method, path, null, handler, timeoutMillis, routes.size()));
+        return this;
+    }
+
+    /**
+     * Compiles all added routes and mounts one dispatcher per HTTP method on the Javalin instance
+     *
+     * @param app The Javalin instance to mount on
+     */
+    public void mount(Javalin app) {
+        mount(app, null);
+    }
+
+    /**
+     * @param executor Runs the dispatch off Jetty's threads, null to dispatch on them
+     */
+    public void mount(Javalin app, HandlerExecutor executor) {
+        if(compiled) return;
+        config = app.config;
+        ignoreTrailingSlashes = config.ignoreTrailingSlashes;
+
+        for(Route route : routes) {
+            if(route.paramNames.length == 0 && !route.wildcard) {
+                staticRoutes.computeIfAbsent(route.method, m -> new HashMap<>())
+                    .putIfAbsent(normalize(route.path), route);
+            } else {
+                trees.computeIfAbsent(route.method, m -> new Node()).insert(route);
+            }
+        }
+        // static routes shadowed by an earlier parametric route never match, as in Javalin
+        Views v = new Views();
+        v.trailingSlash = false;
+        staticRoutes.forEach((method, statics) -> {
+            Node tree = trees.get(method);
+            if(tree != null) statics.values().removeIf(route -> tree.find(normalize(route.path), v, route.index) != null);
+        });
+        compiled = true;
+
+        for(HandlerType method : HandlerType.values()) {
+            if(staticRoutes.containsKey(method) || trees.containsKey(method)) {
+                if(executor != null) app.addHandler(method, "*", ctx -> executor.handle(ctx, detached -> dispatch(method, detached)));
+                else app.addHandler(method, "*", ctx -> dispatch(method, ctx));
+            }
+        }
+    }
+
+    public boolean isCompiled() { return compiled; }
+
+    /**
+     * @return The route matching the method and path, or null when nothing matches
+     */
+    public Route find(HandlerType method, String path) {
+        return find(method, path, views.get());
+    }
+
+    private Route find(HandlerType method, String path, Views v) {
+        v.size = 0;
+        // a wildcard also matches the empty segment after a trailing slash
+        v.trailingSlash = path.endsWith("/");
+        path = normalize(path);
+        Node tree = trees.get(method);
+        Map<String, Route> statics = staticRoutes.get(method);
+        if(statics != null) {
+            Route route = statics.get(path);
+            if(route != null) {
+                if(!v.trailingSlash || tree == null) return route;
+                Route earlier = tree.find(path, v, route.index);
+                return earlier != null ? earlier : route;
+            }
+        }
+        return tree == null ? null : tree.find(path, v, Integer.MAX_VALUE);
+    }
+
+    private void dispatch(HandlerType method, Context ctx) throws Exception {
+        Views v = views.get();
+        String path = ctx.path();
+        String contextPath = ctx.contextPath();
+        if(contextPath.length() > 1 && path.startsWith(contextPath)) path = path.substring(contextPath.length());
+
+        Route route = find(method, path, v);
+        if(route == null) {
+            notFound(method, ctx);
+            return;
+        }
+
+        if(route.async != null) {
+            Context detached = AsyncResult.detach(ctx, config.inner.appAttributes);
+            Request req = new Request(detached);
+            req.bind(detached, route.path, route.paramNames, Arrays.copyOf(v.values, route.paramNames.length));
+            for(int i = 0; i < v.size; i++) v.values[i] = null;
+            AsyncResult.respond(ctx, detached, route.async.handle(req, new Response(detached)), route.timeoutMillis);
+            return;
+        }
+
+        v.req.bind(ctx, route.path, route.paramNames, v.values);
+        v.res.bind(ctx);
+        try {
+            route.handler.handle(v.req, v.res);
+        } finally {
+            v.req.bind(null, null, null, null);
+            v.res.bind(null);
+            for(int i = 0; i < v.size; i++) v.values[i] = null;
+        }
+    }
+
+    /**
+     * Mirrors what Javalin does when no endpoint matches: try static files,
+     * then single page fallbacks, then 404.
+     */
+    private void notFound(HandlerType method, Context ctx) {
+        if(method == HandlerType.GET || method == HandlerType.HEAD) {
+            ResourceHandler resourceHandler = config.inner.resourceHandler;
+            if(resourceHandler != null && resourceHandler.handle(ctx.req,
+                new JavalinResponseWrapper(ctx.res, new ResponseWrapperContext(ctx.req, config)))) return;
+            if(config.inner.singlePageHandler.handle(ctx)) return;
+        }
+        throw new NotFoundResponse();
+    }
+
+    private String normalize(String path) {
+        if(ignoreTrailingSlashes && path.length() > 1 && path.charAt(path.length() - 1) == '/') {
+            return path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    public static class Route {
+        private final HandlerType method;
+        private final String path;
+        private final HttpContextHandler handler;
+        private final AsyncHttpContextHandler async;
+        private final long timeoutMillis;
+        private final String[] paramNames;
+        private final boolean wildcard;
+        private final int index;
+
+        Route(HandlerType method, String path, HttpContextHandler handler, AsyncHttpContextHandler async, long timeoutMillis, int index) {
+            this.index = index;
+            this.method = method;
+            this.path = path;
+            this.handler = handler;
+            this.async = async;
+            this.timeoutMillis = timeoutMillis;
+            List<String> names = new ArrayList<>();
+            boolean wildcard = false;
+            for(String segment : path.split("/")) {
+                if(segment.startsWith(":")) names.add(segment.substring(1));
+                else if(segment.equals("*")) wildcard = true;
+            }
+            this.paramNames = names.toArray(new String[0]);
+            this.wildcard = wildcard;
+        }
+
+        public HandlerType method() { return method; }
+        public String path() { return path; }
+
+        /**
+         * @return The handler of the route, null for async routes
+         */
+        public HttpContextHandler handler() { return handler; }
+
+        /**
+         * @return The async handler of the route, null for other routes
+         */
+        public AsyncHttpContextHandler async() { return async; }
+    }
+
+    private static class Node {
+        private final Map<String, Node> statics = new HashMap<>();
+        private Node param;
+        private Node wildcard;
+        private Route route;
+        // the earliest added route in this branch
+        private int first = Integer.MAX_VALUE;
+
+        void insert(Route route) {
+            Node node = this;
+            node.first = Math.min(node.first, route.index);
+            for(String segment : route.path.split("/")) {
+                if(segment.isEmpty()) continue;
+                if(segment.startsWith(":")) {
+                    if(node.param == null) node.param = new Node();
+                    node = node.param;
+                } else if(segment.equals("*")) {
+                    if(node.wildcard == null) node.wildcard = new Node();
+                    node = node.wildcard;
+                } else {
+                    node = node.statics.computeIfAbsent(segment, s -> new Node());
+                }
+                node.first = Math.min(node.first, route.index);
+            }
+            if(node.route == null) node.route = route;
+        }
+
+        /**
+         * @param before Only consider routes added before this index
+         * @return The earliest added route matching the path, with its params in the views
+         */
+        Route find(String path, Views v, int before) {
+            v.best = null;
+            v.bestIndex = before;
+            match(path, path.isEmpty() || path.charAt(0) != '/' ? 0 : 1, v);
+            Route best = v.best;
+            if(best != null) v.keepBest();
+            v.best = null;
+            return best;
+        }
+
+        /**
+         * Walks every branch that matches the path, skipping the ones where
+         * no route was added before the best match found so far.
+         */
+        private void match(String path, int start, Views v) {
+            if(first >= v.bestIndex) return;
+            if(start >= path.length()) {
+                if(route != null) v.found(route);
+                if(wildcard != null && wildcard.route != null && v.trailingSlash) v.found(wildcard.route);
+                return;
+            }
+
+            int end = path.indexOf('/', start);
+            if(end < 0) end = path.length();
+            int next = end + 1;
+
+            if(!statics.isEmpty()) {
+                Node child = statics.get(path.substring(start, end));
+                if(child != null) child.match(path, next, v);
+            }
+
+            if(param != null && end > start) {
+                int size = v.size;
+                v.push(decode(path.substring(start, end)));
+                param.match(path, next, v);
+                v.size = size;
+            }
+
+            if(wildcard != null) {
+                // a wildcard swallows one or more segments
+                for(int i = next; ; ) {
+                    wildcard.match(path, i, v);
+                    if(i >= path.length()) break;
+                    int slash = path.indexOf('/', i);
+                    i = slash < 0 ? path.length() : slash + 1;
+                }
+            }
+        }
+
+        private static String decode(String value) {
+            return value.indexOf('%') < 0 ? value : ContextUtil.INSTANCE.urlDecode(value);
+        }
+    }
+
+    private static class Views {
+        private final Request req = new Request(null);
+        private final Response res = new Response(null);
+        private String[] values = new String[4];
+        private int size;
+        private String[] bestValues = new String[4];
+        private int bestSize;
+        private Route best;
+        private int bestIndex;
+        private boolean trailingSlash;
+
+        void push(String value) {
+            if(size == values.length) {
+                String[] grown = new String[size * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        void found(Route route) {
+            if(route.index >= bestIndex) return;
+            best = route;
+            bestIndex = route.index;
+            if(bestValues.length < size) bestValues = new String[values.length];
+            System.arraycopy(values, 0, bestValues, 0, size);
+            bestSize = size;
+        }
+
+        /**
+         * Makes the params of the best match the current ones
+         */
+        void keepBest() {
+            for(int i = 0; i < size; i++) values[i] = null;
+            String[] swap = values;
+            values = bestValues;
+            bestValues = swap;
+            size = bestSize;
+        }
+    }
+}
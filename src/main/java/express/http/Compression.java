@@ -0,0 +1,498 @@
+package express.http;
+
+import io.javalin.http.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * @author Johan Wirén
+ *
+ * Compresses responses with brotli, zstd or gzip, whichever comes first in
+ * the policy and is accepted by the client. Results set with res.send() and
+ * res.json() are compressed as a whole after the handlers have run, while
+ * res.stream() compresses as it writes.
+ *
+ * Gzip uses pooled Deflaters and zstd pooled native contexts, so neither
+ * allocates a compressor per request. Brotli needs jvm-brotli and zstd
+ * needs zstd-jni on the classpath, otherwise they are skipped.
+ */
+public class Compression {
+    /**
+     * Request attribute holding the policy of the current route
+     */
+    public static final String POLICY = "express.compression.policy";
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private final Policy defaults;
+    private final Map<Integer, Pool<Deflater>> deflaters = new ConcurrentHashMap<>();
+    private final Map<Integer, Pool<Object>> zstdContexts = new ConcurrentHashMap<>();
+    private final Map<Codec, Stats> stats = new ConcurrentHashMap<>();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public Compression() {
+        this(new Policy());
+    }
+
+    /**
+     * @param defaults The policy for routes without one of their own
+     */
+    public Compression(Policy defaults) {
+        this.defaults = defaults;
+        for(Codec codec : Codec.values()) stats.put(codec, new Stats());
+    }
+
+    public Policy defaults() { return defaults; }
+
+    /**
+     * Compresses the buffered result of the request, if the policy of its route allows
+     */
+    public void apply(Context ctx) throws IOException {
+        InputStream result = ctx.resultStream();
+        if(!(result instanceof ByteArrayInputStream) || ctx.res.isCommitted()) return;
+
+        int length = result.available();
+        Policy policy = policy(ctx);
+        Codec codec = select(ctx, policy, length);
+        if(codec == null) return;
+
+        byte[] content = new byte[length];
+        int read = result.read(content, 0, length);
+        long cpu = cpuTime();
+        byte[] compressed = compress(codec, policy, content, read);
+        cpu = cpuTime() - cpu;
+
+        if(compressed.length >= read) {
+            skipped.incrementAndGet();
+            ctx.result(content);
+            return;
+        }
+        stats.get(codec).add(read, compressed.length, cpu);
+        ctx.header("Content-Encoding", codec.encoding);
+        ctx.header("Vary", "Accept-Encoding");
+        ctx.result(compressed);
+    }
+
+    /**
+     * Opens the response for writing through the compression of the app, when it uses one.
+     * Set the content type first. Closing the returned stream finishes the compression
+     * but keeps the response open.
+     */
+    public static OutputStream open(Context ctx) throws IOException {
+        Compression compression = ctx.appAttribute(Compression.class);
+        return compression != null ? compression.output(ctx) : unclosable(ctx.res.getOutputStream());
+    }
+
+    /**
+     * Opens the response for writing, compressing when the policy of the route allows
+     */
+    public OutputStream output(Context ctx) throws IOException {
+        OutputStream out = unclosable(ctx.res.getOutputStream());
+        Policy policy = policy(ctx);
+        Codec codec = select(ctx, policy, Integer.MAX_VALUE);
+        if(codec == null) return out;
+
+        ctx.header("Content-Encoding", codec.encoding);
+        ctx.header("Vary", "Accept-Encoding");
+        ctx.res.setContentLength(-1);
+        Stats counters = stats.get(codec);
+        CountingStream counted = new CountingStream(out);
+        OutputStream encoder = codec == Codec.GZIP ? new GzipStream(counted, policy.level(codec)) : codec.stream(counted, policy.level(codec));
+
+        return new FilterOutputStream(encoder) {
+            private long written;
+            private long cpu;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                long start = cpuTime();
+                this.out.write(b, off, len);
+                cpu += cpuTime() - start;
+                written += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                long start = cpuTime();
+                this.out.close();
+                cpu += cpuTime() - start;
+                counters.add(written, counted.count, cpu);
+            }
+        };
+    }
+
+    private static OutputStream unclosable(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+    }
+
+    private Policy policy(Context ctx) {
+        Object policy = ctx.req.getAttribute(POLICY);
+        return policy instanceof Policy ? (Policy) policy : defaults;
+    }
+
+    private Codec select(Context ctx, Policy policy, int length) {
+        if(!policy.enabled || length < policy.minSize || "HEAD".equals(ctx.method())) return null;
+        if(ctx.res.getHeader("Content-Encoding") != null) return null;
+        int status = ctx.status();
+        if(status == 204 || status == 304 || status < 200) return null;
+
+        String contentType = ctx.res.getContentType();
+        if(contentType == null || !policy.allows(contentType)) {
+            skipped.incrementAndGet();
+            return null;
+        }
+        String acceptEncoding = ctx.header("Accept-Encoding");
+        if(acceptEncoding == null) return null;
+        for(Codec codec : policy.codecs) {
+            if(codec.isAvailable() && StaticCache.accepts(acceptEncoding, codec.encoding)) return codec;
+        }
+        return null;
+    }
+
+    private byte[] compress(Codec codec, Policy policy, byte[] content, int length) throws IOException {
+        int level = policy.level(codec);
+        if(codec == Codec.ZSTD) {
+            Pool<Object> pool = zstdContexts.computeIfAbsent(level, l -> new Pool<>(() -> Codec.zstdContext(l)));
+            Object context = pool.take();
+            try {
+                byte[] input = content.length == length ? content : Arrays.copyOf(content, length);
+                return (byte[]) Codec.zstdCompress.invoke(context, (Object) input);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("zstd compression failed", e);
+            } finally {
+                pool.release(context);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length / 3 + 64);
+        try (OutputStream out = codec == Codec.GZIP ? new GzipStream(bytes, level) : codec.stream(bytes, level)) {
+            out.write(content, 0, length);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : System.nanoTime();
+    }
+
+    /**
+     * @return Counters for responses compressed with the codec
+     */
+    public Stats stats(Codec codec) { return stats.get(codec); }
+
+    /**
+     * @return Responses large enough but left uncompressed, because of their type or because compression didn't help
+     */
+    public long skipped() { return skipped.get(); }
+
+    public long bytesIn() { return stats.values().stream().mapToLong(Stats::bytesIn).sum(); }
+    public long bytesOut() { return stats.values().stream().mapToLong(Stats::bytesOut).sum(); }
+    public long bytesSaved() { return bytesIn() - bytesOut(); }
+    public long cpuNanos() { return stats.values().stream().mapToLong(Stats::cpuNanos).sum(); }
+
+    public enum Codec {
+        BROTLI("br"),
+        ZSTD("zstd"),
+        GZIP("gzip");
+
+        private static final Constructor<?> brotliStream = constructor("io.javalin.http.LeveledBrotliStream", OutputStream.class, int.class);
+        private static final Constructor<?> zstdStream = constructor("com.github.luben.zstd.ZstdOutputStream", OutputStream.class, int.class);
+        private static final Constructor<?> zstdContext = constructor("com.github.luben.zstd.ZstdCompressCtx");
+        private static final Method zstdLevel = method(zstdContext, "setLevel", int.class);
+        private static final Method zstdCompress = method(zstdContext, "compress", byte[].class);
+        private static final boolean brotli = brotliLoaded();
+
+        private final String encoding;
+
+        Codec(String encoding) {
+            this.encoding = encoding;
+        }
+
+        public String encoding() { return encoding; }
+
+        /**
+         * @return If the library for the codec is on the classpath
+         */
+        public boolean isAvailable() {
+            switch (this) {
+                case BROTLI: return brotli && brotliStream != null;
+                case ZSTD: return zstdStream != null && zstdCompress != null;
+                default: return true;
+            }
+        }
+
+        private OutputStream stream(OutputStream out, int level) throws IOException {
+            try {
+                return (OutputStream) (this == BROTLI ? brotliStream : zstdStream).newInstance(out, level);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("Could not open " + encoding + " stream", e);
+            }
+        }
+
+        private static Object zstdContext(int level) {
+            try {
+                Object context = zstdContext.newInstance();
+                zstdLevel.invoke(context, level);
+                return context;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create zstd context", e);
+            }
+        }
+
+        private static boolean brotliLoaded() {
+            try {
+                return (boolean) Class.forName("com.nixxcode.jvmbrotli.common.BrotliLoader")
+                    .getMethod("isBrotliAvailable").invoke(null);
+            } catch (Exception | LinkageError e) {
+                return false;
+            }
+        }
+
+        private static Constructor<?> constructor(String className, Class<?>... params) {
+            try {
+                return Class.forName(className).getConstructor(params);
+            } catch (Exception | LinkageError e) {
+                return null;
+            }
+        }
+
+        private static Method method(Constructor<?> owner, String name, Class<?>... params) {
+            try {
+                return owner == null ? null : owner.getDeclaringClass().getMethod(name, params);
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * What to compress and how, either for all routes or for the routes of a path
+     */
+    public static class Policy {
+        private boolean enabled = true;
+        private Codec[] codecs = { Codec.BROTLI, Codec.ZSTD, Codec.GZIP };
+        private int minSize = 1024;
+        private Set<String> types;
+        private final Map<Codec, Integer> levels = new ConcurrentHashMap<>();
+
+        public Policy() {
+            levels.put(Codec.BROTLI, 4);
+            levels.put(Codec.ZSTD, 3);
+            levels.put(Codec.GZIP, 6);
+        }
+
+        /**
+         * @return A policy that leaves responses uncompressed
+         */
+        public static Policy off() {
+            Policy policy = new Policy();
+            policy.enabled = false;
+            return policy;
+        }
+
+        /**
+         * @param codecs Codecs in order of preference
+         */
+        public Policy codecs(Codec... codecs) {
+            this.codecs = codecs.clone();
+            return this;
+        }
+
+        /**
+         * @param bytes Smaller responses are sent as they are
+         */
+        public Policy minSize(int bytes) {
+            this.minSize = bytes;
+            return this;
+        }
+
+        /**
+         * Only compress these types, instead of all text-like types
+         */
+        public Policy types(MediaType... types) {
+            Set<String> mimes = new HashSet<>();
+            for(MediaType type : types) mimes.add(type.getMIME().trim().toLowerCase(Locale.ROOT));
+            this.types = mimes;
+            return this;
+        }
+
+        public Policy level(Codec codec, int level) {
+            levels.put(codec, level);
+            return this;
+        }
+
+        public boolean isEnabled() { return enabled; }
+        public int minSize() { return minSize; }
+        public int level(Codec codec) { return levels.get(codec); }
+
+        boolean allows(String contentType) {
+            if(types == null) return MediaType.isCompressible(contentType);
+            MediaType type = MediaType.getByMIME(contentType);
+            if(type != null) return types.contains(type.getMIME().trim().toLowerCase(Locale.ROOT));
+            int params = contentType.indexOf(';');
+            return types.contains((params >= 0 ? contentType.substring(0, params) : contentType).trim().toLowerCase(Locale.ROOT));
+        }
+    }
+
+    public static class Stats {
+        private final AtomicLong responses = new AtomicLong();
+        private final AtomicLong bytesIn = new AtomicLong();
+        private final AtomicLong bytesOut = new AtomicLong();
+        private final AtomicLong cpuNanos = new AtomicLong();
+
+        void add(long in, long out, long cpu) {
+            responses.incrementAndGet();
+            bytesIn.addAndGet(in);
+            bytesOut.addAndGet(out);
+            cpuNanos.addAndGet(cpu);
+        }
+
+        public long responses() { return responses.get(); }
+        public long bytesIn() { return bytesIn.get(); }
+        public long bytesOut() { return bytesOut.get(); }
+        public long bytesSaved() { return bytesIn.get() - bytesOut.get(); }
+
+        /**
+         * @return CPU time spent compressing, or wall time when the JVM can't measure thread CPU time
+         */
+        public long cpuNanos() { return cpuNanos.get(); }
+    }
+
+    /**
+     * Gzip over a pooled Deflater, which is reset and returned to the pool on close
+     */
+    private class GzipStream extends DeflaterOutputStream {
+        private final Pool<Deflater> pool;
+        private final CRC32 crc = new CRC32();
+        private boolean closed;
+
+        GzipStream(OutputStream out, int level) throws IOException {
+            this(out, deflaters.computeIfAbsent(level, l -> new Pool<>(() -> new Deflater(l, true))));
+        }
+
+        private GzipStream(OutputStream out, Pool<Deflater> pool) throws IOException {
+            super(out, pool.take(), 8192);
+            this.pool = pool;
+            out.write(new byte[]{ (byte) GZIP_MAGIC, (byte) (GZIP_MAGIC >> 8), Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff });
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            super.write(b, off, len);
+            crc.update(b, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if(def.finished()) return;
+            super.finish();
+            int size = def.getTotalIn();
+            long checksum = crc.getValue();
+            out.write(new byte[]{
+                (byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24),
+                (byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+            });
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(closed) return;
+            closed = true;
+            try {
+                finish();
+                out.close();
+            } finally {
+                def.reset();
+                pool.release(def);
+            }
+        }
+    }
+
+    private static class CountingStream extends FilterOutputStream {
+        private long count;
+
+        CountingStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+
+    /**
+     * Keeps up to 64 idle instances, so bursts don't grow the pool without bound
+     */
+    private static class Pool<T> {
+        private final Queue<T> idle = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final Supplier<T> factory;
+
+        Pool(Supplier<T> factory) {
+            this.factory = factory;
+        }
+
+        T take() {
+            T item = idle.poll();
+            if(item == null) return factory.get();
+            size.decrementAndGet();
+            return item;
+        }
+
+        void release(T item) {
+            if(size.incrementAndGet() <= 64) {
+                idle.offer(item);
+            } else {
+                size.decrementAndGet();
+                if(item instanceof Deflater) ((Deflater) item).end();
+            }
+        }
+    }
+}
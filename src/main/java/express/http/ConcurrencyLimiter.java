@@ -0,0 +1,272 @@
+package express.http;
+
+import io.javalin.core.PathParser;
+import io.javalin.http.Context;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * @author Johan Wirén
+ *
+ * Caps the number of requests handled at once for the whole app. Requests
+ * over the cap wait in line for at most maxQueueMillis and are then
+ * answered with 503 and Retry-After.
+ *
+ * Once a request has timed out in the queue, the server is overloaded, and
+ * for the next maxQueueMillis new requests are shed right away when no slot
+ * is free instead of also waiting in vain. That keeps the queue short, so
+ * the requests that do get in are answered while the client still waits.
+ *
+ * With adaptive() the cap follows the latency of the server, like TCP
+ * Vegas: the lowest latency seen is taken as the latency without queueing,
+ * and the cap grows while latency stays close to it and shrinks when
+ * requests start queueing up inside the server.
+ *
+ * Routes can be given a priority. Critical routes, like health checks, are
+ * never shed. Bulk routes only get part of the cap and never wait in line,
+ * so they are shed first.
+ */
+public class ConcurrencyLimiter {
+    private static final String PERMIT = "express.concurrency.permit";
+    private static final long WINDOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int PROBE_WINDOWS = 600;
+
+    public enum Priority {
+        /**
+         * Never shed, ex health checks
+         */
+        CRITICAL,
+        NORMAL,
+        /**
+         * Gets three quarters of the cap and never waits in line, ex exports and reports
+         */
+        BULK
+    }
+
+    private final long maxQueueNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder shed = new LongAdder();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final List<Route> routes = new CopyOnWriteArrayList<>();
+    private volatile int limit;
+    private volatile long overloadedUntil;
+
+    // latency samples of the current window, and the state of the adaptive cap
+    private boolean adaptive;
+    private int minLimit;
+    private int maxLimit;
+    private final LongAdder windowRtt = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicLong windowStart = new AtomicLong(System.nanoTime());
+    private volatile int windowPeak;
+    private long minRtt = Long.MAX_VALUE;
+    private int windows;
+
+    /**
+     * @param maxConcurrent  Requests handled at once, or the starting cap when adaptive
+     * @param maxQueueMillis Time a request may wait for a slot before it gets 503
+     */
+    public ConcurrencyLimiter(int maxConcurrent, long maxQueueMillis) {
+        this.limit = maxConcurrent;
+        this.maxQueueNanos = TimeUnit.MILLISECONDS.toNanos(maxQueueMillis);
+    }
+
+    /**
+     * Let the cap follow the latency of the server, between minLimit and maxLimit
+     */
+    public ConcurrencyLimiter adaptive(int minLimit, int maxLimit) {
+        this.adaptive = true;
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.limit = Math.min(Math.max(limit, this.minLimit), this.maxLimit);
+        return this;
+    }
+
+    /**
+     * Sets the priority of the routes matching the path, the first match wins
+     *
+     * @param path The path, ex "/health" or "/api/export/*"
+     */
+    public ConcurrencyLimiter priority(String path, Priority priority) {
+        routes.add(new Route(new PathParser(path, true), priority));
+        return this;
+    }
+
+    /**
+     * Waits for a slot, called before the handlers of every request
+     */
+    public void acquire(Context ctx) {
+        if(ctx.req.getAttribute(PERMIT) != null) return;
+        if(!admit(priority(ctx.path()))) {
+            shed.increment();
+            ctx.header("Retry-After", "1");
+            new Response(ctx).status(503).end("Server is busy, try again later");
+        }
+        ctx.req.setAttribute(PERMIT, System.nanoTime());
+    }
+
+    private Priority priority(String path) {
+        for(Route route : routes) {
+            if(route.path.matches(path)) return route.priority;
+        }
+        return Priority.NORMAL;
+    }
+
+    private int cap(Priority priority) {
+        int limit = this.limit;
+        return priority == Priority.BULK ? Math.max(limit * 3 / 4, 1) : limit;
+    }
+
+    private boolean admit(Priority priority) {
+        if(priority == Priority.CRITICAL) {
+            inFlight.incrementAndGet();
+            return true;
+        }
+        if(priority == Priority.BULK || queued.get() == 0) {
+            if(tryTake(cap(priority))) return true;
+            if(priority == Priority.BULK) return false;
+        }
+        return await();
+    }
+
+    private boolean tryTake(int cap) {
+        while(true) {
+            int running = inFlight.get();
+            if(running >= cap) return false;
+            if(inFlight.compareAndSet(running, running + 1)) {
+                if(running + 1 > windowPeak) windowPeak = running + 1;
+                return true;
+            }
+        }
+    }
+
+    private boolean await() {
+        long now = System.nanoTime();
+        if(now - overloadedUntil < 0) return false;
+        queued.incrementAndGet();
+        lock.lock();
+        try {
+            long remaining = maxQueueNanos;
+            while(!tryTake(limit)) {
+                if(remaining <= 0) {
+                    overloadedUntil = System.nanoTime() + maxQueueNanos;
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            lock.unlock();
+            queued.decrementAndGet();
+        }
+    }
+
+    /**
+     * Frees the slot of the request, called after its handlers
+     */
+    public void release(Context ctx) {
+        Object start = ctx.req.getAttribute(PERMIT);
+        if(!(start instanceof Long)) return;
+        ctx.req.removeAttribute(PERMIT);
+        inFlight.decrementAndGet();
+        if(adaptive) sample(System.nanoTime() - (Long) start);
+        if(queued.get() > 0) signal();
+    }
+
+    private void signal() {
+        lock.lock();
+        try {
+            released.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds the latency of a request to the window, and updates the cap once per window
+     */
+    private void sample(long rtt) {
+        windowRtt.add(rtt);
+        windowSamples.increment();
+        long start = windowStart.get();
+        long now = System.nanoTime();
+        if(now - start < WINDOW_NANOS || !windowStart.compareAndSet(start, now)) return;
+
+        long samples = windowSamples.sumThenReset();
+        long total = windowRtt.sumThenReset();
+        int peak = windowPeak;
+        windowPeak = inFlight.get();
+        if(samples == 0) return;
+        update(total / samples, peak);
+    }
+
+    private synchronized void update(long rtt, int peak) {
+        if(++windows % PROBE_WINDOWS == 0) minRtt = rtt;
+        else minRtt = Math.min(minRtt, Math.max(rtt, 1));
+
+        int limit = this.limit;
+        // requests queued inside the server, as estimated from how much slower they got
+        double queue = limit * (1 - (double) minRtt / rtt);
+        double log = Math.max(1, Math.log10(limit));
+        int next = limit;
+        if(queue > 6 * log) next = (int) (limit - log);
+        else if(queue < 3 * log && peak * 2 >= limit) next = (int) (limit + log);
+        next = Math.min(Math.max(next, minLimit), maxLimit);
+        if(next == limit) return;
+        this.limit = next;
+        if(next > limit && queued.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return The current cap, which changes over time when adaptive
+     */
+    public int limit() { return limit; }
+    public boolean isAdaptive() { return adaptive; }
+    public int inFlight() { return inFlight.get(); }
+
+    /**
+     * @return Requests waiting for a slot right now
+     */
+    public int queued() { return queued.get(); }
+
+    /**
+     * @return Requests answered with 503
+     */
+    public long shed() { return shed.sum(); }
+
+    /**
+     * @return The lowest recent latency in microseconds, taken as the latency without queueing
+     */
+    public synchronized long minLatencyMicros() {
+        return minRtt == Long.MAX_VALUE ? 0 : minRtt / 1000;
+    }
+
+    private static class Route {
+        private final PathParser path;
+        private final Priority priority;
+
+        Route(PathParser path, Priority priority) {
+            this.path = path;
+            this.priority = priority;
+        }
+    }
+}
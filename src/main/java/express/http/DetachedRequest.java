@@ -0,0 +1,44 @@
+package express.http;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpSession;
+
+/**
+ * @author Johan Wirén
+ *
+ * Keeps the parts of the request that Jetty clears when its thread leaves
+ * the servlet, for handlers that finish on another thread
+ */
+class DetachedRequest extends HttpServletRequestWrapper {
+    private final String contextPath;
+    private final String servletPath;
+    private final String pathInfo;
+    private final HttpSession session;
+
+    DetachedRequest(HttpServletRequest req) {
+        super(req);
+        this.contextPath = req.getContextPath();
+        this.servletPath = req.getServletPath();
+        this.pathInfo = req.getPathInfo();
+        this.session = req.getSession(false);
+    }
+
+    @Override
+    public String getContextPath() { return contextPath; }
+
+    @Override
+    public String getServletPath() { return servletPath; }
+
+    @Override
+    public String getPathInfo() { return pathInfo; }
+
+    @Override
+    public HttpSession getSession() { return getSession(true); }
+
+    @Override
+    public HttpSession getSession(boolean create) {
+        if(session != null || !create) return session;
+        throw new IllegalStateException("Sessions can not be created off the Jetty thread, create it in a use() middleware");
+    }
+}
@@ -0,0 +1,277 @@
+package express.http;
+
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author Johan Wirén
+ *
+ * Serves files straight from a FileChannel with support for conditional
+ * requests (If-None-Match, If-Modified-Since, If-Range) and single or
+ * multiple byte ranges.
+ *
+ * File content is written as memory-mapped regions to Jetty's output,
+ * so it never passes through heap buffers. ETags are built from the inode,
+ * size and modification time, so no file is read to answer a conditional
+ * request.
+ */
+public class FileServer {
+    private static final FileServer shared = new FileServer();
+
+    private static final int MAX_RANGES = 16;
+    private static final long MAX_MAPPED_REGION = 16 * 1024 * 1024;
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME;
+
+    /**
+     * @return The FileServer used by Response.sendFile and useStatic(Path)
+     */
+    public static FileServer shared() {
+        return shared;
+    }
+
+    /**
+     * Sends a file, answering 304, 206 and 416 where the request asks for it
+     *
+     * @param req         The servlet request
+     * @param res         The servlet response
+     * @param file        The file to send
+     * @param contentType The Content-Type of the file
+     * @throws NoSuchFileException When the file does not exist or is not a regular file
+     */
+    public void send(HttpServletRequest req, HttpServletResponse res, Path file, String contentType) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+        if(!attrs.isRegularFile()) throw new NoSuchFileException(file.toString());
+
+        long size = attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        String etag = etag(file, attrs);
+
+        res.setHeader("Accept-Ranges", "bytes");
+        res.setHeader("ETag", etag);
+        res.setDateHeader("Last-Modified", lastModified);
+
+        if(notModified(req, etag, lastModified)) {
+            res.setStatus(304);
+            return;
+        }
+
+        boolean head = "HEAD".equals(req.getMethod());
+        List<long[]> ranges = null;
+        String range = req.getHeader("Range");
+        if(range != null && !head && ifRangeMatches(req.getHeader("If-Range"), etag, lastModified)) {
+            ranges = parseRanges(range, size);
+            if(ranges != null && ranges.isEmpty()) {
+                res.setStatus(416);
+                res.setHeader("Content-Range", "bytes */" + size);
+                return;
+            }
+        }
+
+        try (FileChannel channel = head ? null : FileChannel.open(file, StandardOpenOption.READ)) {
+            if(ranges == null) {
+                res.setContentType(contentType);
+                res.setContentLengthLong(size);
+                if(!head) write(res, channel, 0, size);
+            } else if(ranges.size() == 1) {
+                long[] r = ranges.get(0);
+                res.setStatus(206);
+                res.setContentType(contentType);
+                res.setHeader("Content-Range", "bytes " + r[0] + "-" + r[1] + "/" + size);
+                res.setContentLengthLong(r[1] - r[0] + 1);
+                write(res, channel, r[0], r[1] - r[0] + 1);
+            } else {
+                sendMultipart(res, channel, ranges, size, contentType);
+            }
+        }
+    }
+
+    private void sendMultipart(HttpServletResponse res, FileChannel channel, List<long[]> ranges, long size, String contentType) throws IOException {
+        String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(Double.doubleToLongBits(Math.random()));
+        List<byte[]> parts = new ArrayList<>(ranges.size());
+        long length = 0;
+        for(long[] r : ranges) {
+            byte[] part = ("\r\n--" + boundary + "\r\nContent-Type: " + contentType +
+                "\r\nContent-Range: bytes " + r[0] + "-" + r[1] + "/" + size + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            parts.add(part);
+            length += part.length + r[1] - r[0] + 1;
+        }
+        byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        length += end.length;
+
+        res.setStatus(206);
+        res.setContentType("multipart/byteranges; boundary=" + boundary);
+        res.setContentLengthLong(length);
+
+        ServletOutputStream out = output(res);
+        for(int i = 0; i < ranges.size(); i++) {
+            long[] r = ranges.get(i);
+            out.write(parts.get(i));
+            write(res, channel, r[0], r[1] - r[0] + 1);
+        }
+        out.write(end);
+    }
+
+    private void write(HttpServletResponse res, FileChannel channel, long position, long length) throws IOException {
+        ServletOutputStream out = output(res);
+        long end = position + length;
+        while(position < end) {
+            long region = Math.min(MAX_MAPPED_REGION, end - position);
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, region);
+            if(out instanceof HttpOutput) {
+                ((HttpOutput) out).write(mapped);
+            } else {
+                byte[] chunk = new byte[(int) Math.min(region, 64 * 1024)];
+                while(mapped.hasRemaining()) {
+                    int n = Math.min(chunk.length, mapped.remaining());
+                    mapped.get(chunk, 0, n);
+                    out.write(chunk, 0, n);
+                }
+            }
+            position += region;
+        }
+    }
+
+    /**
+     * Writes to the underlying Jetty output, bypassing wrappers that would
+     * buffer or compress the body
+     */
+    private ServletOutputStream output(HttpServletResponse res) throws IOException {
+        ServletResponse unwrapped = res;
+        while(unwrapped instanceof HttpServletResponseWrapper) {
+            unwrapped = ((HttpServletResponseWrapper) unwrapped).getResponse();
+        }
+        return unwrapped.getOutputStream();
+    }
+
+    private boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if(ifNoneMatch != null) return matches(ifNoneMatch, etag);
+
+        String ifModifiedSince = req.getHeader("If-Modified-Since");
+        if(ifModifiedSince != null) {
+            long since = parseDate(ifModifiedSince);
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    private boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+        if(ifRange == null) return true;
+        if(ifRange.startsWith("\"") || ifRange.startsWith("W/")) return ifRange.trim().equals(etag);
+        long date = parseDate(ifRange);
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    /**
+     * Weak comparison, as used for If-None-Match
+     */
+    private static boolean matches(String header, String etag) {
+        if(header.trim().equals("*")) return true;
+        for(String candidate : header.split(",")) {
+            candidate = candidate.trim();
+            if(candidate.startsWith("W/")) candidate = candidate.substring(2);
+            if(candidate.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    private static long parseDate(String date) {
+        try {
+            return ZonedDateTime.parse(date.trim(), HTTP_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses a Range header against the file size
+     *
+     * @return null when the header should be ignored, an empty list when no range is satisfiable
+     */
+    static List<long[]> parseRanges(String header, long size) {
+        if(!header.startsWith("bytes=")) return null;
+        String[] specs = header.substring(6).split(",");
+        if(specs.length > MAX_RANGES) return null;
+
+        List<long[]> ranges = new ArrayList<>(specs.length);
+        for(String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash < 0) return null;
+            try {
+                long start, end;
+                if(dash == 0) {
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if(suffix <= 0) continue;
+                    start = Math.max(0, size - suffix);
+                    end = size - 1;
+                } else {
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                    if(end < start) return null;
+                    if(start >= size) continue;
+                    end = Math.min(end, size - 1);
+                }
+                if(size > 0) ranges.add(new long[]{ start, end });
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return ranges;
+    }
+
+    /**
+     * @return A strong ETag from the inode, size and modification time, which change whenever the content does
+     */
+    String etag(Path file, BasicFileAttributes attrs) {
+        Object inode = attrs.fileKey();
+        long modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+        return "\"" + Long.toHexString(inode != null ? inode.hashCode() : file.toAbsolutePath().normalize().hashCode()) + "-"
+            + Long.toHexString(attrs.size()) + "-" + Long.toHexString(modified) + "\"";
+    }
+
+    /**
+     * @return A strong ETag for content that is already in memory
+     */
+    static String etag(byte[] content) {
+        MessageDigest digest = md5();
+        digest.update(content);
+        return "\"" + hex(digest.digest()) + "\"";
+    }
+
+    private static MessageDigest md5() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return hex.toString();
+    }
+}
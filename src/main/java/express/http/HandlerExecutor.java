@@ -0,0 +1,309 @@
+package express.http;
+
+import express.Express;
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.Handler;
+import io.javalin.http.ServiceUnavailableResponse;
+import io.javalin.http.sse.SseClient;
+import io.javalin.websocket.WsBinaryMessageHandler;
+import io.javalin.websocket.WsCloseHandler;
+import io.javalin.websocket.WsConnectHandler;
+import io.javalin.websocket.WsContext;
+import io.javalin.websocket.WsErrorHandler;
+import io.javalin.websocket.WsHandler;
+import io.javalin.websocket.WsMessageHandler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.PlatformManagedObject;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author Johan Wirén
+ *
+ * Runs Express handlers off Jetty's thread pool, on a virtual thread per
+ * request when the JDK has them (21+), or on a bounded platform pool
+ * otherwise. Jetty threads hand the request over as an async result and
+ * are free for the next connection while the handler blocks.
+ *
+ * The handler gets its own Context over the same servlet request and
+ * response, and its result is handed to Javalin when it returns, so after
+ * handlers and exception mappers work as usual. Request paths and any
+ * existing session are read before the hand-over, since Jetty only knows
+ * them on its own thread. New sessions have to be created in a use()
+ * middleware. WebSocket callbacks run one at a time per session, in the
+ * order they arrived.
+ */
+public class HandlerExecutor {
+    private final ExecutorService executor;
+    private final ThreadPoolExecutor platform;
+    private final Map<Class<?>, Object> appAttributes;
+    private final Map<String, SerialQueue> sessions = new ConcurrentHashMap<>();
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+
+    /**
+     * @param config          The Javalin config of the app, for its attributes
+     * @param fallbackThreads Platform threads used when virtual threads are not available
+     * @param fallbackQueue   Tasks queued for the platform threads before requests get 503
+     */
+    public HandlerExecutor(JavalinConfig config, int fallbackThreads, int fallbackQueue) {
+        this.appAttributes = config.inner.appAttributes;
+        ExecutorService virtual = virtualThreadExecutor();
+        if(virtual != null) {
+            executor = virtual;
+            platform = null;
+        } else {
+            AtomicInteger threads = new AtomicInteger();
+            platform = new ThreadPoolExecutor(fallbackThreads, fallbackThreads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(fallbackQueue), r -> {
+                    Thread thread = new Thread(r, "express-handler-" + threads.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            platform.allowCoreThreadTimeOut(true);
+            executor = platform;
+        }
+    }
+
+    private static ExecutorService virtualThreadExecutor() {
+        try {
+            Method factory = java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    public boolean isVirtual() { return platform == null; }
+
+    /**
+     * Runs a Javalin handler with a Context of its own, completing the request when it returns
+     */
+    public void handle(Context ctx, Handler handler) {
+        Context detached = AsyncResult.detach(ctx, appAttributes);
+        AsyncResult result = new AsyncResult(ctx.req);
+        submit(() -> {
+            try {
+                handler.handle(detached);
+                CompletableFuture<?> future = detached.resultFuture();
+                if(future == null) result.complete(detached.resultStream());
+                else result.follow(future, detached);
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        ctx.result(result);
+    }
+
+    public void handle(Context ctx, HttpContextHandler handler) {
+        handle(ctx, detached -> handler.handle(new Request(detached), new Response(detached)));
+    }
+
+    /**
+     * Wraps the WebSocket config so every callback it registers runs on this executor
+     */
+    public Consumer<WsHandler> ws(Consumer<WsHandler> ws) {
+        return real -> {
+            // drops the session's queue even when the config has no close handler
+            real.onClose(ctx -> serial(ctx, () -> {}, true));
+            ws.accept(wrap(real));
+        };
+    }
+
+    private WsHandler wrap(WsHandler real) {
+        return new WsHandler() {
+            @Override
+            public void onConnect(WsConnectHandler handler) {
+                real.onConnect(ctx -> serial(ctx, () -> handler.handleConnect(ctx), false));
+            }
+
+            @Override
+            public void onMessage(WsMessageHandler handler) {
+                real.onMessage(ctx -> serial(ctx, () -> handler.handleMessage(ctx), false));
+            }
+
+            @Override
+            public void onBinaryMessage(WsBinaryMessageHandler handler) {
+                real.onBinaryMessage(ctx -> serial(ctx, () -> handler.handleBinaryMessage(ctx), false));
+            }
+
+            @Override
+            public void onClose(WsCloseHandler handler) {
+                real.onClose(ctx -> serial(ctx, () -> handler.handleClose(ctx), true));
+            }
+
+            @Override
+            public void onError(WsErrorHandler handler) {
+                real.onError(ctx -> serial(ctx, () -> handler.handleError(ctx), false));
+            }
+        };
+    }
+
+    /**
+     * Wraps an SSE handler so it runs on this executor, the request is already async when it is called
+     */
+    public Consumer<SseClient> sse(Consumer<SseClient> client) {
+        return sseClient -> submit(() -> {
+            try {
+                client.accept(sseClient);
+            } catch (Throwable e) {
+                Express.log.warn("Uncaught exception in SSE handler", e);
+            }
+        });
+    }
+
+    private void serial(WsContext ctx, Callback callback, boolean last) {
+        String id = ctx.getSessionId();
+        SerialQueue queue = queue(id, last || ctx.session.isOpen());
+        queue.add(() -> {
+            try {
+                callback.run();
+            } catch (Throwable e) {
+                Express.log.warn("Uncaught exception in WebSocket handler", e);
+            } finally {
+                if(last) sessions.remove(id, queue);
+            }
+        });
+    }
+
+    /**
+     * @param open False when the session is closed, an error after the close must not leave a queue behind
+     */
+    private SerialQueue queue(String id, boolean open) {
+        if(open) return sessions.computeIfAbsent(id, k -> new SerialQueue());
+        SerialQueue queue = sessions.get(id);
+        return queue != null ? queue : new SerialQueue();
+    }
+
+    private void submit(Runnable task) {
+        try {
+            executor.execute(() -> {
+                int running = inFlight.incrementAndGet();
+                peakInFlight.accumulateAndGet(running, Math::max);
+                try {
+                    task.run();
+                } finally {
+                    inFlight.decrementAndGet();
+                    completed.incrementAndGet();
+                }
+            });
+            submitted.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw new ServiceUnavailableResponse("Server is busy, try again later");
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public long submitted() { return submitted.get(); }
+    public long completed() { return completed.get(); }
+
+    /**
+     * @return Requests answered with 503 because the platform pool and its queue were full
+     */
+    public long rejected() { return rejected.get(); }
+
+    /**
+     * @return Handlers running or blocked right now
+     */
+    public int inFlight() { return inFlight.get(); }
+    public int peakInFlight() { return peakInFlight.get(); }
+
+    /**
+     * @return Tasks waiting for a platform thread, always 0 with virtual threads
+     */
+    public int queued() { return platform == null ? 0 : platform.getQueue().size(); }
+
+    /**
+     * @return Platform threads, or carrier threads for virtual threads
+     */
+    public int poolSize() {
+        if(platform != null) return platform.getPoolSize();
+        Object size = schedulerAttribute("getParallelism");
+        return size instanceof Integer ? (Integer) size : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Share of the pool that is busy, from 0 to 1. For virtual threads this is the share of
+     * carrier threads with a virtual thread mounted, or -1 when the JDK doesn't report it.
+     */
+    public double utilization() {
+        if(platform != null) return (double) platform.getActiveCount() / platform.getMaximumPoolSize();
+        Object mounted = schedulerAttribute("getMountedVirtualThreadCount");
+        return mounted instanceof Integer ? Math.min(1.0, (double) (Integer) mounted / poolSize()) : -1;
+    }
+
+    /**
+     * Reads the virtual thread scheduler MXBean, which only JDK 24 and later have
+     */
+    private static Object schedulerAttribute(String getter) {
+        try {
+            Class<? extends PlatformManagedObject> type =
+                Class.forName("jdk.management.VirtualThreadSchedulerMXBean").asSubclass(PlatformManagedObject.class);
+            Object bean = ManagementFactory.getPlatformMXBean(type);
+            return type.getMethod(getter).invoke(bean);
+        } catch (Exception | LinkageError e) {
+            return null;
+        }
+    }
+
+    private interface Callback {
+        void run() throws Exception;
+    }
+
+    /**
+     * Runs tasks one after another on the executor, without holding a thread while empty
+     */
+    private class SerialQueue {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        void add(Runnable task) {
+            synchronized (this) {
+                tasks.add(task);
+                if(running) return;
+                running = true;
+            }
+            try {
+                submit(this::drain);
+            } catch (ServiceUnavailableResponse e) {
+                synchronized (this) { running = false; }
+                throw e;
+            }
+        }
+
+        private void drain() {
+            while(true) {
+                Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if(task == null) {
+                        running = false;
+                        return;
+                    }
+                }
+                task.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package express.http;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Johan Wirén
+ *
+ * A lock-free histogram of non-negative values with about 6% precision.
+ * Values are bucketed like HdrHistogram: by power of two, with 16 linear
+ * sub-buckets in every power. Threads record into one of several stripes
+ * picked by thread id, so concurrent requests rarely touch the same cache
+ * line. Stripes are only summed when the histogram is read.
+ */
+public class Histogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_SHIFT = 40;
+    private static final int BUCKETS = (MAX_SHIFT + 1) * SUB_BUCKETS + SUB_BUCKETS;
+    private static final int STRIPES = stripes();
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public Histogram() {
+        for(int i = 0; i < STRIPES; i++) stripes[i] = new AtomicLongArray(BUCKETS);
+    }
+
+    private static int stripes() {
+        int cores = Math.min(Runtime.getRuntime().availableProcessors(), 8);
+        return Integer.highestOneBit(Math.max(cores, 1));
+    }
+
+    public void record(long value) {
+        if(value < 0) value = 0;
+        stripes[(int) Thread.currentThread().getId() & (STRIPES - 1)].incrementAndGet(index(value));
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    static int index(long value) {
+        if(value < SUB_BUCKETS) return (int) value;
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(value) - SUB_BITS, MAX_SHIFT);
+        int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return The largest value that falls in the bucket
+     */
+    static long upperBound(int index) {
+        if(index < SUB_BUCKETS) return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return A consistent enough copy of the counts, summed over all stripes
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for(AtomicLongArray stripe : stripes) {
+            for(int i = 0; i < BUCKETS; i++) counts[i] += stripe.get(i);
+        }
+        return new Snapshot(counts, sum.sum(), max.get());
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long sum;
+        private final long max;
+        private final long count;
+
+        Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            this.sum = sum;
+            this.max = max;
+            long count = 0;
+            for(long c : counts) count += c;
+            this.count = count;
+        }
+
+        public long count() { return count; }
+        public long sum() { return sum; }
+        public long max() { return max; }
+        public double mean() { return count == 0 ? 0 : (double) sum / count; }
+
+        /**
+         * @return Number of values at or below the value, within the precision of the buckets
+         */
+        public long countAtOrBelow(long value) {
+            int last = index(Math.max(value, 0));
+            long total = 0;
+            for(int i = 0; i <= last; i++) total += counts[i];
+            return total;
+        }
+
+        /**
+         * @param quantile From 0 to 1, ex 0.99
+         * @return The value at the quantile, 0 when empty
+         */
+        public long valueAt(double quantile) {
+            if(count == 0) return 0;
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for(int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if(seen >= rank && counts[i] > 0) return Math.min(upperBound(i), max);
+            }
+            return max;
+        }
+    }
+}
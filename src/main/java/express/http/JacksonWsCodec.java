@@ -0,0 +1,69 @@
+package express.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.plugin.json.JavalinJackson;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * @author Johan Wirén
+ *
+ * A WsCodec writing with a Jackson ObjectMapper. JSON uses the mapper of
+ * JavalinJackson, so messages look the same as with ctx.send(object).
+ */
+class JacksonWsCodec implements WsCodec {
+    private final String subprotocol;
+    private final ObjectMapper mapper;
+    private final boolean binary;
+
+    /**
+     * @param factory A binary data format, or null for JSON text with the mapper of JavalinJackson
+     */
+    JacksonWsCodec(String subprotocol, JsonFactory factory) {
+        this.subprotocol = subprotocol;
+        this.mapper = factory != null ? new ObjectMapper(factory) : null;
+        this.binary = factory != null;
+    }
+
+    private ObjectMapper mapper() {
+        return mapper != null ? mapper : JavalinJackson.getObjectMapper();
+    }
+
+    @Override
+    public String subprotocol() { return subprotocol; }
+
+    @Override
+    public boolean isBinary() { return binary; }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return mapper().writeValueAsBytes(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalArgumentException("Could not encode " + value.getClass().getName() + " as " + subprotocol, e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] data, Class<T> klass) {
+        try {
+            return mapper().readValue(data, klass);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static JsonFactory factory(String className) {
+        try {
+            return (JsonFactory) Class.forName(className).getConstructor().newInstance();
+        } catch (Exception | LinkageError e) {
+            throw new IllegalStateException(className + " is not on the classpath", e);
+        }
+    }
+
+    @Override
+    public String toString() { return subprotocol; }
+}
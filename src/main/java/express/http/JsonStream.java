@@ -0,0 +1,56 @@
+package express.http;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.javalin.plugin.json.JavalinJackson;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+
+/**
+ * @author Johan Wirén
+ *
+ * Writes JSON arrays one element at a time with Jackson's JsonGenerator,
+ * using the same ObjectMapper as res.json(). Only the current element and
+ * the generator's own buffer are held in memory, full buffers go straight
+ * to the output stream. The output stream is flushed but left open.
+ */
+public class JsonStream {
+
+    /**
+     * Writes all items as a JSON array
+     */
+    public static void writeArray(OutputStream out, Iterator<?> items, boolean pretty) throws IOException {
+        try (JsonGenerator generator = generator(out, pretty)) {
+            writeArray(generator, items);
+        }
+    }
+
+    /**
+     * Writes all items as a JSON array wrapped in an object, like {"field": [...]}
+     */
+    public static void writeArray(OutputStream out, String field, Iterator<?> items, boolean pretty) throws IOException {
+        try (JsonGenerator generator = generator(out, pretty)) {
+            generator.writeStartObject();
+            generator.writeFieldName(field);
+            writeArray(generator, items);
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeArray(JsonGenerator generator, Iterator<?> items) throws IOException {
+        generator.writeStartArray();
+        while(items.hasNext()) generator.writeObject(items.next());
+        generator.writeEndArray();
+    }
+
+    private static JsonGenerator generator(OutputStream out, boolean pretty) throws IOException {
+        ObjectMapper mapper = JavalinJackson.getObjectMapper();
+        JsonGenerator generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+        if(pretty) generator.useDefaultPrettyPrinter();
+        return generator;
+    }
+}
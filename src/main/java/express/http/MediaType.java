@@ -1,5 +1,10 @@
 package express.http;
 
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * @author Simon Reinisch
  * Enum with all MediaTypes
@@ -693,21 +698,77 @@ public enum MediaType {
     _dmg("dmg", "application/x-apple-diskimage"),
     _xww("form", "application/x-www-form-urlencoded");
 
+    private static final Map<String, MediaType> byExtension = new HashMap<>(values().length * 2);
+    private static final Map<String, MediaType> byMIME = new HashMap<>(values().length * 2);
+
+    static {
+        for (MediaType type : values()) {
+            byExtension.putIfAbsent(type.extension.toLowerCase(Locale.ROOT), type);
+            byMIME.putIfAbsent(type.mime.trim().toLowerCase(Locale.ROOT), type);
+        }
+    }
+
     private final String mime;
     private final String extension;
+    private volatile String utf8ContentType;
+    private volatile Map<String, String> contentTypes;
 
     MediaType(String extension, String mime) {
         this.mime = mime;
         this.extension = extension;
     }
 
+    /**
+     * Case-insensitive lookup by file extension, without the leading dot
+     *
+     * @param extension The extension, ex "json"
+     * @return The matching MediaType or null
+     */
     public static MediaType getByExtension(String extension) {
-        for (MediaType type : values()) {
-            if (type.extension.equals(extension)) {
-                return type;
-            }
+        if (extension == null) return null;
+        MediaType type = byExtension.get(extension);
+        if (type == null && hasUpperCase(extension)) type = byExtension.get(extension.toLowerCase(Locale.ROOT));
+        return type;
+    }
+
+    /**
+     * Reverse lookup by MIME type, parameters like charset are ignored.
+     * When several extensions share a MIME type the first declared one is returned.
+     *
+     * @param mime The MIME type, ex "application/json; charset=utf-8"
+     * @return The matching MediaType or null
+     */
+    public static MediaType getByMIME(String mime) {
+        if (mime == null) return null;
+        int params = mime.indexOf(';');
+        mime = (params >= 0 ? mime.substring(0, params) : mime).trim();
+        MediaType type = byMIME.get(mime);
+        if (type == null && hasUpperCase(mime)) type = byMIME.get(mime.toLowerCase(Locale.ROOT));
+        return type;
+    }
+
+    /**
+     * Text-like types that shrink when compressed, as opposed to images, archives and media
+     *
+     * @param contentType The Content-Type, parameters like charset are ignored
+     */
+    public static boolean isCompressible(String contentType) {
+        if (contentType == null) return false;
+        String mime = contentType.toLowerCase(Locale.ROOT);
+        return mime.startsWith("text/") || mime.contains("json") || mime.contains("javascript")
+            || mime.contains("xml") || mime.contains("svg") || mime.startsWith("application/wasm");
+    }
+
+    public boolean isCompressible() {
+        return isCompressible(mime.trim());
+    }
+
+    private static boolean hasUpperCase(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c >= 'A' && c <= 'Z') return true;
         }
-        return null;
+        return false;
     }
 
     public String getMIME() {
@@ -717,4 +778,25 @@ public enum MediaType {
     public String getExtension() {
         return extension;
     }
+
+    /**
+     * @return The Content-Type header value with UTF-8 charset, built once
+     */
+    public String getContentType() {
+        String contentType = utf8ContentType;
+        if (contentType == null) utf8ContentType = contentType = mime.trim() + "; charset=utf-8";
+        return contentType;
+    }
+
+    /**
+     * @param charset The charset, ex "utf-8", or null for none
+     * @return The Content-Type header value with the charset, cached per charset
+     */
+    public String getContentType(String charset) {
+        if (charset == null) return mime.trim();
+        if (charset.equalsIgnoreCase("utf-8")) return getContentType();
+        Map<String, String> cache = contentTypes;
+        if (cache == null) contentTypes = cache = new ConcurrentHashMap<>(4);
+        return cache.computeIfAbsent(charset, c -> mime.trim() + "; charset=" + c);
+    }
 }
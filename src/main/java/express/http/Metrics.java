@@ -0,0 +1,241 @@
+package express.http;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.Context;
+import io.javalin.http.RequestLogger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * @author Johan Wirén
+ *
+ * Records requests, status classes, latency and response sizes per route,
+ * and writes them in the Prometheus text format. Recording only bumps
+ * striped counters, all formatting happens when the endpoint is scraped.
+ *
+ * A request is started when its route handler is called and finished by
+ * Javalin's request logger, after the response has been written, so async
+ * results, after handlers and compression are part of the numbers.
+ */
+public class Metrics {
+    private static final String SAMPLE = "express.metrics.sample";
+    private static final long[] LATENCY_BUCKETS_MICROS = {
+        1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000
+    };
+    private static final long[] SIZE_BUCKETS = { 100, 1_000, 10_000, 100_000, 1_000_000, 10_000_000 };
+    private static final String[] STATUS_CLASSES = { "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    /**
+     * Finishes requests from Javalin's request logger, keeping any logger already set
+     */
+    public void install(JavalinConfig config) {
+        RequestLogger previous = config.inner.requestLogger;
+        if(previous instanceof Logger) previous = ((Logger) previous).next;
+        config.inner.requestLogger = new Logger(previous);
+    }
+
+    /**
+     * @return The metrics of the route, created on first use
+     */
+    public Route route(String method, String path) {
+        return routes.computeIfAbsent(method + " " + path, k -> new Route(method, path));
+    }
+
+    /**
+     * Marks the start of a request to the route
+     */
+    public void start(Context ctx, Route route) {
+        if(ctx.req.getAttribute(SAMPLE) != null) return;
+        route.inFlight.incrementAndGet();
+        ctx.req.setAttribute(SAMPLE, new Sample(route, System.nanoTime()));
+    }
+
+    void finish(Context ctx) {
+        Object attribute = ctx.req.getAttribute(SAMPLE);
+        if(!(attribute instanceof Sample)) return;
+        ctx.req.removeAttribute(SAMPLE);
+        Sample sample = (Sample) attribute;
+        Route route = sample.route;
+        route.inFlight.decrementAndGet();
+
+        int status = ctx.status();
+        route.statuses[Math.min(Math.max(status / 100, 1), 5) - 1].increment();
+        route.latency.record((System.nanoTime() - sample.start) / 1000);
+        route.sizes.record(bytesWritten(ctx));
+    }
+
+    private static long bytesWritten(Context ctx) {
+        try {
+            return org.eclipse.jetty.server.Request.getBaseRequest(ctx.req).getResponse().getHttpOutput().getWritten();
+        } catch (RuntimeException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Adds a gauge to the output, left out while the supplier returns NaN
+     */
+    public synchronized Metrics gauge(String name, String help, DoubleSupplier value) {
+        gauges.add(new Gauge(name, help, value));
+        return this;
+    }
+
+    public Map<String, Route> routes() { return routes; }
+
+    /**
+     * @return All metrics in the Prometheus text format, version 0.0.4
+     */
+    public String scrape() {
+        List<Route> all = new ArrayList<>(routes.values());
+        List<Histogram.Snapshot> latencies = new ArrayList<>(all.size());
+        List<Histogram.Snapshot> sizes = new ArrayList<>(all.size());
+        for(Route route : all) {
+            latencies.add(route.latency.snapshot());
+            sizes.add(route.sizes.snapshot());
+        }
+        StringBuilder out = new StringBuilder(512 + all.size() * 2048);
+
+        header(out, "express_http_requests_total", "counter", "Requests handled, by route and status class");
+        for(Route route : all) {
+            for(int i = 0; i < STATUS_CLASSES.length; i++) {
+                long count = route.statuses[i].sum();
+                if(count == 0) continue;
+                out.append("express_http_requests_total{").append(route.labels).append(",status=\"")
+                    .append(STATUS_CLASSES[i]).append("\"} ").append(count).append('\n');
+            }
+        }
+
+        header(out, "express_http_requests_in_flight", "gauge", "Requests being handled right now");
+        for(Route route : all) {
+            out.append("express_http_requests_in_flight{").append(route.labels).append("} ").append(route.inFlight.get()).append('\n');
+        }
+
+        header(out, "express_http_request_duration_seconds", "histogram", "Time from the route handler to the written response");
+        for(int i = 0; i < all.size(); i++) {
+            histogram(out, "express_http_request_duration_seconds", all.get(i).labels, latencies.get(i), LATENCY_BUCKETS_MICROS, 1e6);
+        }
+
+        header(out, "express_http_request_duration_quantile_seconds", "gauge", "Latency quantiles since start");
+        for(int i = 0; i < all.size(); i++) {
+            for(double q : new double[]{ 0.5, 0.9, 0.99, 0.999 }) {
+                out.append("express_http_request_duration_quantile_seconds{").append(all.get(i).labels)
+                    .append(",quantile=\"").append(q).append("\"} ").append(latencies.get(i).valueAt(q) / 1e6).append('\n');
+            }
+        }
+
+        header(out, "express_http_response_size_bytes", "histogram", "Bytes written to the client, after compression");
+        for(int i = 0; i < all.size(); i++) {
+            histogram(out, "express_http_response_size_bytes", all.get(i).labels, sizes.get(i), SIZE_BUCKETS, 1);
+        }
+
+        synchronized (this) {
+            for(Gauge gauge : gauges) {
+                double value = gauge.value.getAsDouble();
+                if(Double.isNaN(value)) continue;
+                header(out, gauge.name, "gauge", gauge.help);
+                out.append(gauge.name).append(' ').append(value).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void header(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void histogram(StringBuilder out, String name, String labels, Histogram.Snapshot snapshot, long[] buckets, double divisor) {
+        for(long bucket : buckets) {
+            out.append(name).append("_bucket{").append(labels).append(",le=\"").append(bucket / divisor).append("\"} ")
+                .append(snapshot.countAtOrBelow(bucket)).append('\n');
+        }
+        out.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ").append(snapshot.count()).append('\n');
+        out.append(name).append("_sum{").append(labels).append("} ").append(snapshot.sum() / divisor).append('\n');
+        out.append(name).append("_count{").append(labels).append("} ").append(snapshot.count()).append('\n');
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    public static class Route {
+        private final String method;
+        private final String path;
+        private final String labels;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LongAdder[] statuses = new LongAdder[STATUS_CLASSES.length];
+        private final Histogram latency = new Histogram();
+        private final Histogram sizes = new Histogram();
+
+        Route(String method, String path) {
+            this.method = method;
+            this.path = path;
+            this.labels = "method=\"" + escape(method) + "\",route=\"" + escape(path) + "\"";
+            for(int i = 0; i < statuses.length; i++) statuses[i] = new LongAdder();
+        }
+
+        public String method() { return method; }
+        public String path() { return path; }
+        public int inFlight() { return inFlight.get(); }
+
+        /**
+         * @param statusClass From 1 to 5, ex 2 for 2xx
+         */
+        public long requests(int statusClass) { return statuses[statusClass - 1].sum(); }
+
+        /**
+         * @return Latency in microseconds
+         */
+        public Histogram.Snapshot latency() { return latency.snapshot(); }
+
+        /**
+         * @return Response sizes in bytes
+         */
+        public Histogram.Snapshot sizes() { return sizes.snapshot(); }
+    }
+
+    private static class Sample {
+        private final Route route;
+        private final long start;
+
+        Sample(Route route, long start) {
+            this.route = route;
+            this.start = start;
+        }
+    }
+
+    private static class Gauge {
+        private final String name;
+        private final String help;
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, DoubleSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.value = value;
+        }
+    }
+
+    private class Logger implements RequestLogger {
+        private final RequestLogger next;
+
+        Logger(RequestLogger next) {
+            this.next = next;
+        }
+
+        @Override
+        public void handle(Context ctx, Float executionTimeMs) throws Exception {
+            finish(ctx);
+            if(next != null) next.handle(ctx, executionTimeMs);
+        }
+    }
+}
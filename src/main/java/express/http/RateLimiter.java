@@ -0,0 +1,177 @@
+package express.http;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * @author Johan Wirén
+ *
+ * Middleware that limits each client to a steady rate of requests with
+ * room for short bursts, and answers the rest with 429 and Retry-After.
+ * Clients are keyed by IP by default, or by a header or any function of
+ * the request.
+ *
+ * Each key has a token bucket kept in a single long, the time at which
+ * the bucket would be full again, and is updated with a compare-and-set.
+ * Keys live in striped concurrent maps, so lookups don't lock and memory
+ * stays bounded: when a stripe is full, the least recently seen of a few
+ * sampled keys is dropped, an approximation of LRU.
+ *
+ * <pre>
+ * app.use("/api/*", new RateLimiter(10, 20).byHeader("X-Api-Key"));
+ * </pre>
+ */
+public class RateLimiter implements HttpContextHandler {
+    private static final int STRIPES = 16;
+
+    private final long nanosPerToken;
+    private final long burstNanos;
+    private final int limit;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final LongAdder allowed = new LongAdder();
+    private final LongAdder limited = new LongAdder();
+    private Function<Request, String> key = Request::ip;
+
+    /**
+     * @param perSecond Requests per second each client gets over time
+     * @param burst     Requests a client can make at once after being idle
+     */
+    public RateLimiter(double perSecond, int burst) {
+        if(perSecond <= 0 || burst < 1) throw new IllegalArgumentException("perSecond and burst must be positive");
+        this.nanosPerToken = (long) (1e9 / perSecond);
+        this.burstNanos = nanosPerToken * (burst - 1);
+        this.limit = burst;
+        maxKeys(100_000);
+    }
+
+    /**
+     * Key clients by a value of the request, requests without one are keyed by IP
+     */
+    public RateLimiter keyBy(Function<Request, String> key) {
+        this.key = key;
+        return this;
+    }
+
+    /**
+     * Key clients by a request header, ex "X-Api-Key"
+     */
+    public RateLimiter byHeader(String header) {
+        return keyBy(req -> req.get(header));
+    }
+
+    /**
+     * @param maxKeys Clients tracked at once, roughly the least recently seen are forgotten first
+     */
+    public RateLimiter maxKeys(int maxKeys) {
+        for(int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(Math.max(maxKeys / STRIPES, 1));
+        return this;
+    }
+
+    @Override
+    public void handle(Request req, Response res) {
+        String client = key.apply(req);
+        if(client == null) client = req.ip();
+
+        long wait = acquire(client, System.nanoTime());
+        if(wait <= 0) {
+            allowed.increment();
+            return;
+        }
+        limited.increment();
+        res.append("Retry-After", String.valueOf((wait + 999_999_999) / 1_000_000_000));
+        res.append("X-RateLimit-Limit", String.valueOf(limit));
+        res.status(429).end("Too Many Requests");
+    }
+
+    /**
+     * Takes a token from the client's bucket
+     *
+     * @return 0 when a token was taken, otherwise nanoseconds until the next one
+     */
+    long acquire(String client, long now) {
+        AtomicLong bucket = stripes[spread(client.hashCode()) & (STRIPES - 1)].bucket(client, now).full;
+        while(true) {
+            long full = bucket.get();
+            long start = Math.max(full, now);
+            long wait = start - now - burstNanos;
+            if(wait > 0) return wait;
+            if(bucket.compareAndSet(full, start + nanosPerToken)) return 0;
+        }
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * @return Requests let through
+     */
+    public long allowed() { return allowed.sum(); }
+
+    /**
+     * @return Requests answered with 429
+     */
+    public long limited() { return limited.sum(); }
+
+    /**
+     * @return Clients tracked right now
+     */
+    public int keys() {
+        int keys = 0;
+        for(Stripe stripe : stripes) keys += stripe.buckets.size();
+        return keys;
+    }
+
+    private static class Stripe {
+        private static final int SAMPLES = 8;
+
+        private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+        private final int maxKeys;
+
+        Stripe(int maxKeys) {
+            this.maxKeys = maxKeys;
+        }
+
+        Bucket bucket(String client, long now) {
+            Bucket bucket = buckets.get(client);
+            if(bucket == null) {
+                while(buckets.size() >= maxKeys) evict();
+                bucket = buckets.computeIfAbsent(client, c -> new Bucket(now));
+            }
+            bucket.seen = now;
+            return bucket;
+        }
+
+        /**
+         * Drops the least recently seen of the first few keys
+         */
+        private void evict() {
+            String oldest = null;
+            long oldestSeen = 0;
+            int sampled = 0;
+            for(Map.Entry<String, Bucket> entry : buckets.entrySet()) {
+                long seen = entry.getValue().seen;
+                if(oldest == null || seen - oldestSeen < 0) {
+                    oldest = entry.getKey();
+                    oldestSeen = seen;
+                }
+                if(++sampled == SAMPLES) break;
+            }
+            if(oldest != null) buckets.remove(oldest);
+        }
+    }
+
+    private static class Bucket {
+        // the time at which the bucket would be full again
+        private final AtomicLong full;
+        private volatile long seen;
+
+        Bucket(long now) {
+            this.full = new AtomicLong(now);
+            this.seen = now;
+        }
+    }
+}
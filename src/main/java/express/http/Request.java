@@ -1,8 +1,14 @@
 package express.http;
 
+import com.fasterxml.jackson.core.JsonParser;
+import io.javalin.core.validation.Validator;
 import io.javalin.http.Context;
 import io.javalin.http.UploadedFile;
+import io.javalin.plugin.json.JavalinJackson;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -12,17 +18,49 @@ import java.util.Map;
  * The Request object wrapping Javalins Context
  */
 public class Request {
-    private final Context ctx;
+    /**
+     * Request attribute with the max body size in bytes, set by app.maxBodySize()
+     */
+    public static final String MAX_BODY_SIZE = "express.body.maxSize";
+
+    private Context ctx;
+    private String routePath;
+    private String[] paramNames;
+    private String[] paramValues;
 
     public Request(Context ctx) {
         this.ctx = ctx;
     }
 
+    /**
+     * Re-points this view to another request, used by the CompiledRouter
+     * which resolves path params itself instead of through Javalin
+     */
+    void bind(Context ctx, String routePath, String[] paramNames, String[] paramValues) {
+        this.ctx = ctx;
+        this.routePath = routePath;
+        this.paramNames = paramNames;
+        this.paramValues = paramValues;
+    }
+
     public Context ctx() { return ctx; }
-    public String baseUrl() { return ctx.endpointHandlerPath(); }
-    public Map body() { return ctx.bodyAsClass(Map.class); }
-    public <T> T body(Class<T> klass) { return ctx.bodyAsClass(klass); }
-    public byte[] bodyAsBytes() { return ctx.bodyAsBytes(); }
+    public String baseUrl() { return routePath != null ? routePath : ctx.endpointHandlerPath(); }
+    public Map body() { return RequestBody.of(ctx).as(ctx, Map.class); }
+    public <T> T body(Class<T> klass) { return RequestBody.of(ctx).as(ctx, klass); }
+    public byte[] bodyAsBytes() { return RequestBody.of(ctx).bytes(ctx); }
+
+    /**
+     * Reads the body without buffering it, for large payloads. After this the
+     * body can't be read again, unless it was already buffered by body().
+     */
+    public InputStream bodyAsStream() { return RequestBody.of(ctx).stream(ctx); }
+
+    /**
+     * A Jackson parser over bodyAsStream(), to read large JSON bodies one value at a time
+     */
+    public JsonParser bodyParser() throws IOException {
+        return JavalinJackson.getObjectMapper().getFactory().createParser(bodyAsStream());
+    }
     public String cookie(String name) { return ctx.cookie(name); }
     public Map<String, String> cookies() { return ctx.cookieMap(); }
     public String host() { return ctx.host(); }
@@ -30,17 +68,36 @@ public class Request {
     public String ip() { return ctx.ip(); }
     public String method() { return ctx.method(); }
     public String originalUrl() { return ctx.fullUrl(); }
-    public Map<String, String> params() { return ctx.pathParamMap(); }
-    public String params(String key) { return ctx.pathParam(key); }
-    public <T> T params(String key, Class<T> klass) { return (T) ctx.pathParam(key, klass); }
+    public Map<String, String> params() {
+        if(paramNames == null) return ctx.pathParamMap();
+        Map<String, String> params = new LinkedHashMap<>();
+        for(int i = 0; i < paramNames.length; i++) params.put(paramNames[i], paramValues[i]);
+        return params;
+    }
+    public String params(String key) {
+        if(paramNames == null) return ctx.pathParam(key);
+        for(int i = 0; i < paramNames.length; i++) {
+            if(paramNames[i].equals(key)) return paramValues[i];
+        }
+        throw new IllegalArgumentException("'" + key + "' is not a valid path-param for '" + path() + "'.");
+    }
+    public <T> T params(String key, Class<T> klass) {
+        if(paramNames == null) return (T) ctx.pathParam(key, klass);
+        return (T) Validator.Companion.create(klass, params(key), key);
+    }
     public String path() { return ctx.path(); }
     public String protocol() { return ctx.protocol(); }
     public Map<String, List<String>> query() { return ctx.queryParamMap(); }
     public String query(String key) { return ctx.queryParam(key); }
     public <T> T query(String key, Class<T> klass) { return (T) ctx.queryParam(key, klass); }
-    public Map<String, List<String>> formData() { return ctx.formParamMap(); }
-    public String formData(String key) { return ctx.formParam(key); }
-    public <T> T formData(String key, Class<T> klass) { return (T) ctx.formParam(key, klass); }
+    public Map<String, List<String>> formData() { return RequestBody.of(ctx).form(ctx); }
+
+    public String formData(String key) {
+        List<String> values = formData().get(key);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    public <T> T formData(String key, Class<T> klass) { return (T) Validator.Companion.create(klass, formData(key)); }
     public UploadedFile formDataFile(String key) { return ctx.uploadedFile(key); }
     public List<UploadedFile> formDataFiles(String key) { return ctx.uploadedFiles(key); }
     public boolean secure() { return protocol().equals("https"); }
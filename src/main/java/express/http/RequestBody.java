@@ -0,0 +1,176 @@
+package express.http;
+
+import io.javalin.http.Context;
+import io.javalin.http.util.ContextUtil;
+import io.javalin.plugin.json.JavalinJson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author Johan Wirén
+ *
+ * The body of one request, read once and kept as a request attribute so
+ * every Request view of it, in middlewares, handlers and handlers running
+ * on other threads, shares the bytes and the parsed objects.
+ *
+ * The max body size is checked against Content-Length before anything is
+ * read, and counted while reading for chunked bodies. Requests over it get 413.
+ * Url-encoded forms are parsed from the same bytes, as Javalin would read the
+ * body a second time and find it empty.
+ */
+class RequestBody {
+    private static final String ATTRIBUTE = "express.body";
+
+    private byte[] bytes;
+    private boolean streamed;
+    private Map<String, List<String>> form;
+    private final Map<Class<?>, Object> parsed = new HashMap<>();
+
+    static RequestBody of(Context ctx) {
+        Object body = ctx.req.getAttribute(ATTRIBUTE);
+        if(body instanceof RequestBody) return (RequestBody) body;
+        synchronized (ctx.req) {
+            body = ctx.req.getAttribute(ATTRIBUTE);
+            if(body instanceof RequestBody) return (RequestBody) body;
+            RequestBody created = new RequestBody();
+            ctx.req.setAttribute(ATTRIBUTE, created);
+            return created;
+        }
+    }
+
+    synchronized byte[] bytes(Context ctx) {
+        if(bytes != null) return bytes;
+        if(streamed) throw new IllegalStateException("The body has already been read as a stream");
+        try (InputStream in = open(ctx)) {
+            long length = ctx.req.getContentLengthLong();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(length > 0 ? (int) Math.min(length, 1 << 20) : 1024);
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            bytes = out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes;
+    }
+
+    synchronized String string(Context ctx) {
+        return new String(bytes(ctx), charset(ctx));
+    }
+
+    /**
+     * @return The body parsed as klass, parsed once per class
+     */
+    @SuppressWarnings("unchecked")
+    synchronized <T> T as(Context ctx, Class<T> klass) {
+        if(parsed.containsKey(klass)) return (T) parsed.get(klass);
+        T value = JavalinJson.fromJson(string(ctx), klass);
+        parsed.put(klass, value);
+        return value;
+    }
+
+    /**
+     * @return The form fields, parsed from the buffered body unless it is multipart,
+     *         which is left to the servlet container after checking Content-Length
+     */
+    synchronized Map<String, List<String>> form(Context ctx) {
+        if(form != null) return form;
+        if(ctx.isMultipartFormData()) {
+            if(maxSize(ctx) >= 0 && ctx.req.getContentLengthLong() > maxSize(ctx)) tooLarge(ctx);
+            form = ctx.formParamMap();
+        } else {
+            form = ContextUtil.INSTANCE.splitKeyValueStringAndGroupByKey(string(ctx), charset(ctx).name());
+        }
+        return form;
+    }
+
+    /**
+     * @return The unread body, or the buffered body when it has already been read
+     */
+    synchronized InputStream stream(Context ctx) {
+        if(bytes != null) return new ByteArrayInputStream(bytes);
+        if(streamed) throw new IllegalStateException("The body has already been read as a stream");
+        streamed = true;
+        try {
+            return open(ctx);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static long maxSize(Context ctx) {
+        Object max = ctx.req.getAttribute(Request.MAX_BODY_SIZE);
+        return max instanceof Long ? (Long) max : -1;
+    }
+
+    private static InputStream open(Context ctx) throws IOException {
+        long maxSize = maxSize(ctx);
+        if(maxSize >= 0 && ctx.req.getContentLengthLong() > maxSize) tooLarge(ctx);
+        InputStream in = ctx.req.getInputStream();
+        return maxSize < 0 ? in : new Limited(in, maxSize, ctx);
+    }
+
+    private static void tooLarge(Context ctx) {
+        new Response(ctx).status(413).end("Payload too large");
+    }
+
+    private static Charset charset(Context ctx) {
+        String encoding = ctx.req.getCharacterEncoding();
+        try {
+            return encoding != null ? Charset.forName(encoding) : StandardCharsets.UTF_8;
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /**
+     * Answers 413 once more than maxSize bytes have been read
+     */
+    private static class Limited extends FilterInputStream {
+        private final long maxSize;
+        private final Context ctx;
+        private long read;
+
+        Limited(InputStream in, long maxSize, Context ctx) {
+            super(in);
+            this.maxSize = maxSize;
+            this.ctx = ctx;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if(b != -1) count(1);
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if(n > 0) count(n);
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count(skipped);
+            return skipped;
+        }
+
+        private void count(long n) {
+            read += n;
+            if(read > maxSize) tooLarge(ctx);
+        }
+    }
+}
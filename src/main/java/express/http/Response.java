@@ -6,10 +6,14 @@ import io.javalin.plugin.json.JavalinJson;
 import javax.servlet.http.Cookie;
 import java.io.IOException;
 import java.io.InputStream;
-import java.nio.file.Files;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.stream.Stream;
 
 /**
  * @author Johan Wirén
@@ -17,12 +21,19 @@ import java.util.Map;
  * The Response object wrapping Javalins Context
  */
 public class Response {
-    private final Context ctx;
+    private Context ctx;
 
     public Response(Context ctx) {
         this.ctx = ctx;
     }
 
+    /**
+     * Re-points this view to another response, used by the CompiledRouter
+     */
+    void bind(Context ctx) {
+        this.ctx = ctx;
+    }
+
     public Context ctx() { return ctx; }
     public Response send(String text) {
         type("text/html");
@@ -37,6 +48,41 @@ public class Response {
         return this;
     }
 
+
+    /**
+     * Streams the items as a JSON array, serializing one item at a time
+     * instead of building the whole payload in memory. Compressed on the
+     * fly when the app uses compression.
+     */
+    public Response stream(Iterator<?> items) {
+        ctx.contentType("application/json");
+        try (OutputStream out = Compression.open(ctx)) {
+            JsonStream.writeArray(out, items, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    public Response stream(Stream<?> items) {
+        try (Stream<?> stream = items) {
+            return stream(stream.iterator());
+        }
+    }
+
+    /**
+     * Streams the items as a JSON array wrapped in an object, like {"field": [...]}
+     */
+    public Response stream(String field, Iterator<?> items) {
+        ctx.contentType("application/json");
+        try (OutputStream out = Compression.open(ctx)) {
+            JsonStream.writeArray(out, field, items, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
     public Response append(String name, String value) { ctx.header(name, value); return this; }
     public Response attachment() {
         ctx.header("Content-Disposition", "attachment");
@@ -55,9 +101,12 @@ public class Response {
         MediaType fromExtension = MediaType.getByExtension(
                 path.toString().substring(path.toString().lastIndexOf(".") + 1)
         );
-        ctx.contentType(fromExtension != null ? fromExtension.getMIME() : "text/plain");
+        String contentType = fromExtension != null ? fromExtension.getContentType(null) : "text/plain";
+        ctx.contentType(contentType);
         try {
-            ctx.result(Files.newInputStream(path));
+            FileServer.shared().send(ctx.req, ctx.res, path, contentType);
+        } catch (NoSuchFileException e) {
+            status(404);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -74,14 +123,26 @@ public class Response {
     public Response redirect(String location) { ctx.redirect(location); return this; }
     public Response redirect(int httpStatusCode, String location) { ctx.redirect(location, httpStatusCode); return this; }
     public Response render(String filePath, Map<String, Object> model) { ctx.render(filePath, model); return this; }
-    public Response sendStatus(int statusCode) { status(statusCode).send(Status.valueOf(statusCode).getDescription()); return this; }
+    public Response sendStatus(int statusCode) {
+        Status status = Status.valueOf(statusCode);
+        status(statusCode).send(status != null ? status.getDescription() : String.valueOf(statusCode));
+        return this;
+    }
     public Response set(String name, String value) { ctx.header(name, value); return this; }
     public Response status(int statusCode) { ctx.status(statusCode); return this; }
     public int status() { return ctx.status(); }
     public Response type(String contentType) {
-        if(contentType.startsWith(".")) contentType = contentType.replaceFirst("\\.", "");
+        if(contentType.startsWith(".")) contentType = contentType.substring(1);
         MediaType fromExtension = MediaType.getByExtension(contentType);
-        ctx.contentType(fromExtension != null ? fromExtension.getMIME() : contentType);
+        ctx.contentType(fromExtension != null ? fromExtension.getContentType(null) : contentType);
+        return this;
+    }
+    public Response type(String contentType, String charset) {
+        if(contentType.startsWith(".")) contentType = contentType.substring(1);
+        MediaType mediaType = MediaType.getByExtension(contentType);
+        if(mediaType == null) mediaType = MediaType.getByMIME(contentType);
+        if(mediaType != null) ctx.contentType(mediaType.getContentType(charset));
+        else ctx.contentType(charset == null ? contentType : contentType + "; charset=" + charset);
         return this;
     }
 
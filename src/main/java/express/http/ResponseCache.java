@@ -0,0 +1,484 @@
+package express.http;
+
+import io.javalin.http.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author Johan Wirén
+ *
+ * Caches the serialized responses of GET routes for a while, keyed on the
+ * path, the query and any headers the rule varies on. Hits are answered
+ * without running the handler, and with 304 when the client already has
+ * the ETag. Concurrent misses on the same key wait for the first request
+ * instead of all running the handler, and run it themselves when it takes
+ * longer than coalesceTimeoutMillis. The headers the handler set are cached
+ * with the body, except Set-Cookie, responses that set a cookie are never
+ * cached.
+ *
+ * Memory is bounded with W-TinyLFU: new entries land in a small window,
+ * and only move on to the main area when they have been requested more
+ * often than the entry they would replace, which keeps one-off requests
+ * from flushing popular ones. Lookups don't lock, only inserts do.
+ */
+public class ResponseCache {
+    private long maxBytes;
+    private long windowMax;
+    private long protectedMax;
+    private volatile long coalesceTimeoutMillis = 10_000;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> tags = new ConcurrentHashMap<>();
+    private final Sketch sketch;
+
+    // segments in eviction order, guarded by this
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>();
+    private final LinkedHashMap<String, Entry> protect = new LinkedHashMap<>();
+    private long windowBytes;
+    private long probationBytes;
+    private long protectedBytes;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder notModified = new LongAdder();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes Memory budget for all cached responses
+     */
+    public ResponseCache(long maxBytes) {
+        budget(maxBytes);
+        this.sketch = new Sketch((int) Math.min(Math.max(maxBytes / 1024, 256), 1 << 20));
+    }
+
+    /**
+     * @param coalesceTimeoutMillis Time a miss waits for a concurrent one on the same key before running the handler itself
+     */
+    public ResponseCache coalesceTimeoutMillis(long coalesceTimeoutMillis) {
+        this.coalesceTimeoutMillis = coalesceTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * Caches a route for ttlMillis, use with app.get(path, cache(5000), handler)
+     */
+    public static Rule cache(long ttlMillis) {
+        return new Rule(ttlMillis);
+    }
+
+    /**
+     * Wraps a handler so its responses are served from the cache
+     */
+    public HttpContextHandler wrap(Rule rule, HttpContextHandler handler) {
+        return (req, res) -> {
+            Context ctx = res.ctx();
+            String key = key(ctx, rule);
+            Entry entry = get(key);
+            if(entry != null) {
+                hits.increment();
+                serve(ctx, entry);
+                return;
+            }
+
+            CompletableFuture<Entry> mine = new CompletableFuture<>();
+            CompletableFuture<Entry> running = loading.putIfAbsent(key, mine);
+            if(running != null) {
+                coalesced.increment();
+                entry = await(running);
+                if(entry != null) {
+                    serve(ctx, entry);
+                    return;
+                }
+                handler.handle(req, res);
+                return;
+            }
+
+            misses.increment();
+            try {
+                handler.handle(req, res);
+                entry = capture(ctx, key, rule);
+                if(entry != null) {
+                    put(entry);
+                    serve(ctx, entry);
+                }
+                mine.complete(entry);
+            } catch (Throwable e) {
+                mine.complete(null);
+                throw e;
+            } finally {
+                loading.remove(key, mine);
+            }
+        };
+    }
+
+    private Entry await(CompletableFuture<Entry> running) {
+        try {
+            return running.get(coalesceTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException | TimeoutException e) {
+            return null;
+        }
+    }
+
+    private static String key(Context ctx, Rule rule) {
+        StringBuilder key = new StringBuilder(ctx.path());
+        String query = ctx.queryString();
+        if(query != null && !query.isEmpty()) {
+            String[] params = query.split("&");
+            Arrays.sort(params);
+            key.append('?').append(String.join("&", params));
+        }
+        for(String header : rule.vary) {
+            String value = ctx.header(header);
+            key.append('\n').append(header).append(':').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Takes the result the handler set, when it is a complete 200 response
+     */
+    private static Entry capture(Context ctx, String key, Rule rule) throws java.io.IOException {
+        InputStream result = ctx.resultStream();
+        if(ctx.resultFuture() != null || !(result instanceof ByteArrayInputStream) || ctx.status() != 200) return null;
+        if(ctx.res.isCommitted() || ctx.res.getHeader("Set-Cookie") != null) return null;
+
+        byte[] body = new byte[result.available()];
+        int read = result.read(body, 0, body.length);
+        if(read < body.length) body = Arrays.copyOf(body, Math.max(read, 0));
+        ctx.result(body);
+
+        List<String> headers = new ArrayList<>();
+        for(String name : ctx.res.getHeaderNames()) {
+            if(name.equalsIgnoreCase("Content-Type") || name.equalsIgnoreCase("Content-Length") || name.equalsIgnoreCase("ETag")) continue;
+            for(String value : ctx.res.getHeaders(name)) {
+                headers.add(name);
+                headers.add(value);
+            }
+        }
+        return new Entry(key, body, ctx.res.getContentType(), headers.toArray(new String[0]), etag(body),
+            System.currentTimeMillis() + rule.ttlMillis, rule.tags);
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(body);
+            StringBuilder etag = new StringBuilder("\"");
+            for(int i = 0; i < 8; i++) etag.append(String.format("%02x", digest[i]));
+            return etag.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            return "\"" + Integer.toHexString(Arrays.hashCode(body)) + "-" + body.length + "\"";
+        }
+    }
+
+    private void serve(Context ctx, Entry entry) {
+        String[] headers = entry.headers;
+        for(int i = 0; i < headers.length; i += 2) {
+            // a header set more than once replaces what the request had, then adds the rest
+            if(i == 0 || !headers[i].equals(headers[i - 2])) ctx.res.setHeader(headers[i], headers[i + 1]);
+            else ctx.res.addHeader(headers[i], headers[i + 1]);
+        }
+        ctx.header("ETag", entry.etag);
+        String ifNoneMatch = ctx.header("If-None-Match");
+        if(ifNoneMatch != null && (ifNoneMatch.contains(entry.etag) || ifNoneMatch.trim().equals("*"))) {
+            notModified.increment();
+            ctx.status(304);
+            ctx.result("");
+            return;
+        }
+        if(entry.contentType != null) ctx.res.setContentType(entry.contentType);
+        ctx.result(entry.body);
+    }
+
+    /**
+     * @return The fresh entry for the key, or null
+     */
+    private Entry get(String key) {
+        Entry entry = entries.get(key);
+        if(entry == null) return null;
+        if(entry.expiresAt <= System.currentTimeMillis()) {
+            remove(entry);
+            return null;
+        }
+        entry.accessed = true;
+        sketch.increment(key.hashCode());
+        return entry;
+    }
+
+    private synchronized void put(Entry entry) {
+        if(entry.weight > windowMax && entry.weight > maxBytes / 4) return;
+        Entry previous = entries.put(entry.key, entry);
+        if(previous != null) unlink(previous);
+        for(String tag : entry.tags) tags.computeIfAbsent(tag, t -> ConcurrentHashMap.newKeySet()).add(entry.key);
+        sketch.increment(entry.key.hashCode());
+
+        window.put(entry.key, entry);
+        entry.segment = window;
+        windowBytes += entry.weight;
+        while(windowBytes > windowMax && !window.isEmpty()) {
+            Entry candidate = first(window);
+            window.remove(candidate.key);
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+    }
+
+    /**
+     * Moves an entry from the window to probation, if it is requested more
+     * often than the probation entries it would push out
+     */
+    private void admit(Entry candidate) {
+        long mainMax = maxBytes - windowMax;
+        int frequency = sketch.frequency(candidate.key.hashCode());
+        while(probationBytes + protectedBytes + candidate.weight > mainMax) {
+            Entry victim = probation.isEmpty() ? null : first(probation);
+            if(victim == null) {
+                if(protect.isEmpty()) break;
+                demote(first(protect));
+                continue;
+            }
+            if(victim.accessed) {
+                promote(victim);
+                continue;
+            }
+            if(frequency <= sketch.frequency(victim.key.hashCode())) {
+                evict(candidate);
+                return;
+            }
+            evict(victim);
+        }
+        probation.put(candidate.key, candidate);
+        candidate.segment = probation;
+        candidate.accessed = false;
+        probationBytes += candidate.weight;
+    }
+
+    private void promote(Entry entry) {
+        probation.remove(entry.key);
+        probationBytes -= entry.weight;
+        entry.accessed = false;
+        protect.put(entry.key, entry);
+        entry.segment = protect;
+        protectedBytes += entry.weight;
+        while(protectedBytes > protectedMax && !protect.isEmpty()) demote(first(protect));
+    }
+
+    private void demote(Entry entry) {
+        protect.remove(entry.key);
+        protectedBytes -= entry.weight;
+        probation.put(entry.key, entry);
+        entry.segment = probation;
+        probationBytes += entry.weight;
+    }
+
+    /**
+     * Changes the memory budget, evicting entries until they fit. Routes keep
+     * using this cache, so it is resized rather than replaced.
+     */
+    public synchronized ResponseCache maxBytes(long maxBytes) {
+        budget(maxBytes);
+        while(windowBytes > windowMax && !window.isEmpty()) {
+            Entry candidate = first(window);
+            window.remove(candidate.key);
+            windowBytes -= candidate.weight;
+            admit(candidate);
+        }
+        while(probationBytes + protectedBytes > maxBytes - windowMax) {
+            if(!probation.isEmpty()) evict(first(probation));
+            else if(!protect.isEmpty()) demote(first(protect));
+            else break;
+        }
+        while(protectedBytes > protectedMax && !protect.isEmpty()) demote(first(protect));
+        return this;
+    }
+
+    public synchronized long maxBytes() { return maxBytes; }
+
+    private void budget(long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.windowMax = Math.max(maxBytes / 100, 1);
+        this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+    }
+
+    private void evict(Entry entry) {
+        evictions.incrementAndGet();
+        entries.remove(entry.key, entry);
+        unlink(entry);
+    }
+
+    private synchronized void remove(Entry entry) {
+        if(entries.remove(entry.key, entry)) unlink(entry);
+    }
+
+    private void unlink(Entry entry) {
+        if(entry.segment != null && entry.segment.remove(entry.key, entry)) {
+            if(entry.segment == window) windowBytes -= entry.weight;
+            else if(entry.segment == probation) probationBytes -= entry.weight;
+            else protectedBytes -= entry.weight;
+        }
+        entry.segment = null;
+        for(String tag : entry.tags) {
+            Set<String> keys = tags.get(tag);
+            if(keys != null && entries.get(entry.key) == null) keys.remove(entry.key);
+        }
+    }
+
+    private static Entry first(LinkedHashMap<String, Entry> segment) {
+        Iterator<Entry> it = segment.values().iterator();
+        return it.next();
+    }
+
+    /**
+     * Drops all responses cached with the tag
+     */
+    public synchronized void invalidate(String tag) {
+        Set<String> keys = tags.remove(tag);
+        if(keys == null) return;
+        for(String key : keys) {
+            Entry entry = entries.remove(key);
+            if(entry != null) unlink(entry);
+        }
+    }
+
+    public synchronized void invalidateAll() {
+        entries.clear();
+        tags.clear();
+        window.clear();
+        probation.clear();
+        protect.clear();
+        windowBytes = probationBytes = protectedBytes = 0;
+    }
+
+    public long hits() { return hits.sum(); }
+    public long misses() { return misses.sum(); }
+
+    /**
+     * @return Requests that waited for a concurrent miss on the same key instead of running the handler
+     */
+    public long coalesced() { return coalesced.sum(); }
+    public long notModified() { return notModified.sum(); }
+    public long evictions() { return evictions.get(); }
+    public int size() { return entries.size(); }
+    public synchronized long bytes() { return windowBytes + probationBytes + protectedBytes; }
+
+    /**
+     * How a route is cached, built with ResponseCache.cache(ttlMillis)
+     */
+    public static class Rule {
+        private final long ttlMillis;
+        private String[] vary = new String[0];
+        private Set<String> tags = Collections.emptySet();
+
+        Rule(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+
+        /**
+         * @param headers Request headers that change the response, ex "Accept-Language"
+         */
+        public Rule vary(String... headers) {
+            this.vary = headers.clone();
+            return this;
+        }
+
+        /**
+         * @param tags Tags to invalidate the cached responses with, ex "users"
+         */
+        public Rule tags(String... tags) {
+            this.tags = Collections.unmodifiableSet(new java.util.HashSet<>(Arrays.asList(tags)));
+            return this;
+        }
+    }
+
+    private static class Entry {
+        private final String key;
+        private final byte[] body;
+        private final String contentType;
+        // name and value pairs, in the order the handler set them
+        private final String[] headers;
+        private final String etag;
+        private final long expiresAt;
+        private final Set<String> tags;
+        private final long weight;
+        private volatile boolean accessed;
+        private LinkedHashMap<String, Entry> segment;
+
+        Entry(String key, byte[] body, String contentType, String[] headers, String etag, long expiresAt, Set<String> tags) {
+            this.key = key;
+            this.body = body;
+            this.contentType = contentType;
+            this.headers = headers;
+            this.etag = etag;
+            this.expiresAt = expiresAt;
+            this.tags = tags;
+            long weight = body.length + key.length() * 2L + 128;
+            for(String header : headers) weight += header.length() * 2L + 16;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * Count-min sketch of how often keys are requested, with four 4-bit
+     * counters per key. All counters are halved every 10 * width increments,
+     * so old popularity fades.
+     */
+    private static class Sketch {
+        private final AtomicIntegerArray counters;
+        private final int mask;
+        private final int resetAt;
+        private final AtomicLong additions = new AtomicLong();
+
+        Sketch(int width) {
+            int size = Integer.highestOneBit(width - 1) << 1;
+            this.counters = new AtomicIntegerArray(size * 4);
+            this.mask = size - 1;
+            this.resetAt = size * 10;
+        }
+
+        void increment(int hash) {
+            for(int row = 0; row < 4; row++) {
+                int index = index(hash, row);
+                if(counters.get(index) < 15) counters.incrementAndGet(index);
+            }
+            if(additions.incrementAndGet() % resetAt == 0) {
+                for(int i = 0; i < counters.length(); i++) counters.set(i, counters.get(i) >>> 1);
+            }
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for(int row = 0; row < 4; row++) min = Math.min(min, counters.get(index(hash, row)));
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + row * 0x7F4A7C15);
+            h ^= h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package express.http;
+
+import express.Express;
+import io.javalin.http.sse.SseClient;
+import io.javalin.plugin.json.JavalinJson;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author Johan Wirén
+ *
+ * Broadcasts server-sent events to every client connected to a path. Each
+ * event is encoded once into a frame shared by all clients, and written to
+ * them with non-blocking servlet writes, so publishing never waits on the
+ * network. Every client has a bounded queue, and a client that falls so far
+ * behind that its queue is full is disconnected. Browsers reconnect by
+ * themselves and get what they missed from the replay log.
+ *
+ * The last events are kept in a ring buffer, and clients reconnecting with
+ * a Last-Event-ID header are sent the events after it first. Heartbeat
+ * comments keep idle connections open through proxies, sent for all hubs
+ * from a single scheduler thread.
+ *
+ * <pre>
+ * SseHub hub = new SseHub();
+ * app.sse("/events", hub);
+ * hub.publish("user", user);
+ * </pre>
+ *
+ * Clients of a hub must not be written to with SseClient.sendEvent().
+ */
+public class SseHub implements Consumer<SseClient> {
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "express-sse-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private final Event[] replay;
+    private final int maxQueuedFrames;
+    private final ScheduledFuture<?> heartbeat;
+    private final AtomicLong evicted = new AtomicLong();
+    private volatile long idleSince = System.currentTimeMillis();
+    private long nextId = 1;
+
+    public SseHub() {
+        this(1024, 256, 15_000);
+    }
+
+    /**
+     * @param replaySize      Events kept for clients reconnecting with Last-Event-ID
+     * @param maxQueuedFrames Frames queued per client before it is disconnected as too slow
+     * @param heartbeatMillis Time between heartbeat comments, 0 for none
+     */
+    public SseHub(int replaySize, int maxQueuedFrames, long heartbeatMillis) {
+        this.replay = new Event[Math.max(replaySize, 1)];
+        this.maxQueuedFrames = maxQueuedFrames;
+        this.heartbeat = heartbeatMillis <= 0 ? null :
+            heartbeats.scheduleAtFixedRate(this::heartbeat, heartbeatMillis, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connects a client, called by Javalin for every request to the sse() path
+     */
+    @Override
+    public void accept(SseClient sse) {
+        Client client;
+        try {
+            client = new Client(sse.ctx.req.getAsyncContext(), sse.ctx.res.getOutputStream());
+        } catch (IOException | IllegalStateException e) {
+            Express.log.warn("Could not connect SSE client", e);
+            return;
+        }
+        long lastId = lastEventId(sse.ctx.header("Last-Event-ID"));
+        synchronized (this) {
+            if(lastId >= 0) {
+                for(long id = Math.max(lastId + 1, nextId - replay.length); id < nextId; id++) {
+                    Event event = replay[(int) (id % replay.length)];
+                    if(event != null && event.id == id) client.queue.add(event.frame);
+                }
+            }
+            clients.add(client);
+            idleSince = 0;
+        }
+        client.start();
+    }
+
+    private static long lastEventId(String header) {
+        if(header == null) return -1;
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public long publish(String data) {
+        return publish(null, data);
+    }
+
+    /**
+     * Sends an event to all clients
+     *
+     * @param event The event name, or null for plain messages
+     * @param data  A String sent as it is, or an object sent as JSON
+     * @return The id of the event
+     */
+    public long publish(String event, Object data) {
+        String text = data instanceof String ? (String) data : JavalinJson.toJson(data);
+        synchronized (this) {
+            long id = nextId++;
+            byte[] frame = encode(id, event, text);
+            replay[(int) (id % replay.length)] = new Event(id, frame);
+            for(Client client : clients) client.offer(frame);
+            return id;
+        }
+    }
+
+    private static byte[] encode(long id, String event, String data) {
+        StringBuilder frame = new StringBuilder(data.length() + 32);
+        frame.append("id: ").append(id).append('\n');
+        if(event != null) frame.append("event: ").append(event).append('\n');
+        for(String line : data.split("\r\n|\r|\n", -1)) frame.append("data: ").append(line).append('\n');
+        return frame.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private void heartbeat() {
+        for(Client client : clients) client.offer(HEARTBEAT);
+    }
+
+    /**
+     * Disconnects all clients and stops the heartbeat
+     */
+    public void close() {
+        if(heartbeat != null) heartbeat.cancel(false);
+        for(Client client : new ArrayList<>(clients)) client.close();
+    }
+
+    public int clients() { return clients.size(); }
+
+    /**
+     * @return Milliseconds since the last client left, 0 while clients are connected
+     */
+    public long idleMillis() {
+        long since = idleSince;
+        return since == 0 || !clients.isEmpty() ? 0 : System.currentTimeMillis() - since;
+    }
+
+    /**
+     * @return The id the next event will get
+     */
+    public synchronized long nextId() { return nextId; }
+
+    /**
+     * @return Clients disconnected because their queue was full
+     */
+    public long evicted() { return evicted.get(); }
+
+    private static class Event {
+        private final long id;
+        private final byte[] frame;
+
+        Event(long id, byte[] frame) {
+            this.id = id;
+            this.frame = frame;
+        }
+    }
+
+    private class Client implements WriteListener, AsyncListener {
+        private final AsyncContext async;
+        private final ServletOutputStream out;
+        private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+        private boolean started;
+        private boolean flush;
+        private boolean closed;
+
+        Client(AsyncContext async, ServletOutputStream out) {
+            this.async = async;
+            this.out = out;
+        }
+
+        void start() {
+            async.addListener(this);
+            out.setWriteListener(this);
+            synchronized (this) {
+                started = true;
+                drain();
+            }
+        }
+
+        synchronized void offer(byte[] frame) {
+            if(closed) return;
+            if(queue.size() >= maxQueuedFrames) {
+                evicted.incrementAndGet();
+                close();
+                return;
+            }
+            queue.add(frame);
+            if(started) drain();
+        }
+
+        /**
+         * Writes queued frames while the output accepts them without blocking.
+         * When it doesn't, Jetty calls onWritePossible() once it does.
+         */
+        private synchronized void drain() {
+            try {
+                while(!closed && out.isReady()) {
+                    byte[] frame = queue.poll();
+                    if(frame == null) {
+                        if(!flush) return;
+                        flush = false;
+                        out.flush();
+                        continue;
+                    }
+                    out.write(frame);
+                    flush = true;
+                }
+            } catch (IOException | IllegalStateException e) {
+                close();
+            }
+        }
+
+        @Override
+        public void onWritePossible() {
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            close();
+        }
+
+        void close() {
+            synchronized (this) {
+                if(closed) return;
+                closed = true;
+                queue.clear();
+            }
+            clients.remove(this);
+            if(clients.isEmpty()) idleSince = System.currentTimeMillis();
+            try {
+                async.complete();
+            } catch (IllegalStateException e) {
+                // already completed by Jetty
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) { close(); }
+
+        @Override
+        public void onTimeout(AsyncEvent event) { close(); }
+
+        @Override
+        public void onError(AsyncEvent event) { close(); }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) { }
+    }
+}
@@ -0,0 +1,363 @@
+package express.http;
+
+import express.Express;
+import org.eclipse.jetty.server.HttpOutput;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * @author Johan Wirén
+ *
+ * Bounded, size-aware in-memory cache for static files. Each entry keeps
+ * the file as a direct ByteBuffer together with gzip and brotli variants
+ * that are compressed once, when the file is first cached.
+ *
+ * Hits are answered from memory without touching the file system.
+ * Files in external directories are invalidated through a WatchService,
+ * classpath files never change and are kept until evicted. A file is
+ * compressed by one request at a time, concurrent first requests for it
+ * are answered uncompressed meanwhile.
+ */
+public class StaticCache {
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> compressing = new ConcurrentHashMap<>();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final long maxBytes;
+    private final long maxFileSize;
+    private final boolean brotli;
+    private WatchService watcher;
+
+    /**
+     * @param maxBytes    Memory budget for all cached files and their compressed variants
+     * @param maxFileSize Files larger than this are never cached
+     */
+    public StaticCache(long maxBytes, long maxFileSize) {
+        this.maxBytes = maxBytes;
+        this.maxFileSize = maxFileSize;
+        this.brotli = brotliAvailable();
+    }
+
+    public long maxFileSize() { return maxFileSize; }
+    public long usedBytes() { return usedBytes.get(); }
+    public int size() { return entries.size(); }
+
+    /**
+     * Answers the request from the cache
+     *
+     * @return false when the uri is not cached or the request needs a byte range
+     */
+    public boolean serve(String uri, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        Entry entry = entries.get(uri);
+        if(entry == null || req.getHeader("Range") != null) return false;
+        entry.lastAccess = clock.incrementAndGet();
+        write(entry, req, res);
+        return true;
+    }
+
+    /**
+     * Caches the file content under the uri and answers the request from it
+     *
+     * @param file The source file for external directories, null for classpath resources
+     */
+    public void put(String uri, byte[] content, Path file, String contentType, String etag, long lastModified,
+                    HttpServletRequest req, HttpServletResponse res) throws IOException {
+        Entry entry = new Entry(file, contentType, etag, lastModified, ByteBuffer.wrap(content).asReadOnlyBuffer());
+        if(compressing.putIfAbsent(uri, Boolean.TRUE) != null) {
+            // another request is compressing the file and will cache it
+            write(entry, req, res);
+            return;
+        }
+        try {
+            entry = new Entry(file, contentType, etag, lastModified, direct(content));
+            if(MediaType.isCompressible(contentType)) {
+                entry.gzip = smaller(gzip(content), content.length);
+                if(brotli) entry.brotli = smaller(brotli(content), content.length);
+            }
+
+            Entry previous = entries.put(uri, entry);
+            usedBytes.addAndGet(entry.bytes() - (previous != null ? previous.bytes() : 0));
+            entry.lastAccess = clock.incrementAndGet();
+            // checked after the put, so a change the watcher handled before it can't leave a stale entry
+            if(file != null && !unchanged(file, lastModified, content.length)) remove(uri, entry);
+        } finally {
+            compressing.remove(uri);
+        }
+        evict();
+        write(entry, req, res);
+    }
+
+    private static boolean unchanged(Path file, long lastModified, long size) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis() == lastModified && Files.size(file) == size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private void write(Entry entry, HttpServletRequest req, HttpServletResponse res) throws IOException {
+        String acceptEncoding = req.getHeader("Accept-Encoding");
+        ByteBuffer body = entry.identity;
+        String encoding = null;
+        if(acceptEncoding != null) {
+            if(entry.brotli != null && accepts(acceptEncoding, "br")) {
+                body = entry.brotli;
+                encoding = "br";
+            } else if(entry.gzip != null && accepts(acceptEncoding, "gzip")) {
+                body = entry.gzip;
+                encoding = "gzip";
+            }
+        }
+        String etag = encoding == null ? entry.etag : entry.etag.substring(0, entry.etag.length() - 1) + "-" + encoding + "\"";
+
+        res.setHeader("ETag", etag);
+        res.setDateHeader("Last-Modified", entry.lastModified);
+        if(entry.gzip != null || entry.brotli != null) res.setHeader("Vary", "Accept-Encoding");
+
+        if(notModified(req, etag, entry.lastModified)) {
+            res.setStatus(304);
+            return;
+        }
+
+        res.setContentType(entry.contentType);
+        if(encoding != null) res.setHeader("Content-Encoding", encoding);
+        res.setContentLength(body.remaining());
+        if("HEAD".equals(req.getMethod())) return;
+
+        ServletResponse unwrapped = res;
+        while(unwrapped instanceof HttpServletResponseWrapper) {
+            unwrapped = ((HttpServletResponseWrapper) unwrapped).getResponse();
+        }
+        ServletOutputStream out = unwrapped.getOutputStream();
+        if(out instanceof HttpOutput) {
+            ((HttpOutput) out).write(body.duplicate());
+        } else {
+            ByteBuffer copy = body.duplicate();
+            byte[] bytes = new byte[copy.remaining()];
+            copy.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    private static boolean notModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader("If-None-Match");
+        if(ifNoneMatch != null) return ifNoneMatch.contains(etag) || ifNoneMatch.trim().equals("*");
+        try {
+            long ifModifiedSince = req.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Watches external directories, dropping cached files when they change
+     */
+    public synchronized void watch(Iterable<Path> dirs) {
+        try {
+            if(watcher == null) {
+                watcher = FileSystems.getDefault().newWatchService();
+                Thread thread = new Thread(this::processEvents, "express-static-cache-watcher");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            for(Path dir : dirs) register(dir);
+        } catch (IOException e) {
+            Express.log.warn("Could not watch static files, the static cache will not be invalidated", e);
+        }
+    }
+
+    public synchronized void close() {
+        try {
+            if(watcher != null) watcher.close();
+        } catch (IOException ignored) {
+        }
+        watcher = null;
+        entries.clear();
+        usedBytes.set(0);
+    }
+
+    private void register(Path root) throws IOException {
+        try (Stream<Path> dirs = Files.walk(root)) {
+            Iterator<Path> it = dirs.filter(Files::isDirectory).iterator();
+            while(it.hasNext()) it.next().register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        }
+    }
+
+    private void processEvents() {
+        WatchService service = watcher;
+        while(true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path dir = (Path) key.watchable();
+            for(WatchEvent<?> event : key.pollEvents()) {
+                if(event.kind() == OVERFLOW) {
+                    entries.keySet().forEach(this::remove);
+                    continue;
+                }
+                Path changed = dir.resolve((Path) event.context());
+                invalidate(changed);
+                if(event.kind() == ENTRY_CREATE && Files.isDirectory(changed)) {
+                    try {
+                        synchronized (this) { if(watcher != null) register(changed); }
+                    } catch (IOException e) {
+                        Express.log.warn("Could not watch " + changed, e);
+                    }
+                }
+            }
+            key.reset();
+        }
+    }
+
+    /**
+     * Drops every cached file at or below the path
+     */
+    public void invalidate(Path changed) {
+        entries.forEach((uri, entry) -> {
+            if(entry.file != null && entry.file.startsWith(changed)) remove(uri);
+        });
+    }
+
+    private void remove(String uri) {
+        Entry removed = entries.remove(uri);
+        if(removed != null) usedBytes.addAndGet(-removed.bytes());
+    }
+
+    private void remove(String uri, Entry entry) {
+        if(entries.remove(uri, entry)) usedBytes.addAndGet(-entry.bytes());
+    }
+
+    /**
+     * Drops the least recently used entries once the cache is over its budget.
+     * It evicts down to 90% of the budget in one sorted pass, so the entries
+     * are only scanned once for many puts instead of once per evicted file.
+     */
+    private void evict() {
+        if(usedBytes.get() <= maxBytes) return;
+        synchronized (entries) {
+            if(usedBytes.get() <= maxBytes) return;
+            List<Map.Entry<String, Entry>> oldest = new ArrayList<>(entries.entrySet());
+            oldest.sort((a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+            long target = maxBytes - maxBytes / 10;
+            for(Map.Entry<String, Entry> e : oldest) {
+                if(usedBytes.get() <= target) break;
+                remove(e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    static boolean accepts(String acceptEncoding, String encoding) {
+        for(String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            if(!tokens[0].trim().equalsIgnoreCase(encoding)) continue;
+            for(int i = 1; i < tokens.length; i++) {
+                String param = tokens[i].trim();
+                if(param.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static ByteBuffer smaller(byte[] compressed, int original) {
+        return compressed != null && compressed.length < original * 0.9 ? direct(compressed) : null;
+    }
+
+    private static ByteBuffer direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes) {{ def.setLevel(Deflater.BEST_COMPRESSION); }}) {
+            out.write(content);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static boolean brotliAvailable() {
+        try {
+            return (boolean) Class.forName("com.nixxcode.jvmbrotli.common.BrotliLoader")
+                .getMethod("isBrotliAvailable").invoke(null);
+        } catch (Exception | LinkageError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Brotli is only available when jvm-brotli is on the classpath, loaded through Javalin
+     */
+    private static byte[] brotli(byte[] content) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length / 2 + 64);
+            try (OutputStream out = (OutputStream) Class.forName("io.javalin.http.LeveledBrotliStream")
+                .getConstructor(OutputStream.class, int.class).newInstance(bytes, 11)) {
+                out.write(content);
+            }
+            return bytes.toByteArray();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static class Entry {
+        private final Path file;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+        private final ByteBuffer identity;
+        private ByteBuffer gzip;
+        private ByteBuffer brotli;
+        private volatile long lastAccess;
+
+        Entry(Path file, String contentType, String etag, long lastModified, ByteBuffer identity) {
+            this.file = file;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.identity = identity;
+        }
+
+        long bytes() {
+            return identity.capacity() + (gzip != null ? gzip.capacity() : 0) + (brotli != null ? brotli.capacity() : 0);
+        }
+    }
+}
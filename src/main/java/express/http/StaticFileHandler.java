@@ -0,0 +1,225 @@
+package express.http;
+
+import io.javalin.core.JavalinConfig;
+import io.javalin.http.staticfiles.JettyResourceHandler;
+import io.javalin.http.staticfiles.Location;
+import io.javalin.http.staticfiles.ResourceHandler;
+import io.javalin.http.staticfiles.StaticFileConfig;
+import io.javalin.http.util.ContextUtil;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+
+/**
+ * @author Johan Wirén
+ *
+ * Javalin ResourceHandler that serves Location.EXTERNAL directories through
+ * the FileServer, and hands classpath directories to Javalin's own handler.
+ *
+ * With a StaticCache, hot files from both external and classpath directories
+ * are answered from memory, and Range requests or files too large for the
+ * cache take the paths above.
+ */
+public class StaticFileHandler implements ResourceHandler {
+    private final JavalinConfig config;
+    private final FileServer fileServer;
+    private final List<Root> roots = new CopyOnWriteArrayList<>();
+    private final List<Root> classpathRoots = new CopyOnWriteArrayList<>();
+    private final long startedAt = System.currentTimeMillis();
+    private ResourceHandler delegate;
+    private volatile StaticCache cache;
+
+    public StaticFileHandler(JavalinConfig config, FileServer fileServer) {
+        this.config = config;
+        this.fileServer = fileServer;
+    }
+
+    /**
+     * Installs a StaticFileHandler on the config, keeping any handler
+     * that was already there for classpath files
+     *
+     * @return The installed handler
+     */
+    public static StaticFileHandler install(JavalinConfig config) {
+        if(config.inner.resourceHandler instanceof StaticFileHandler) {
+            return (StaticFileHandler) config.inner.resourceHandler;
+        }
+        StaticFileHandler handler = new StaticFileHandler(config, FileServer.shared());
+        handler.delegate = config.inner.resourceHandler;
+        config.inner.resourceHandler = handler;
+        return handler;
+    }
+
+    /**
+     * Serves hot files from memory, external directories are watched for changes
+     */
+    public StaticFileHandler useCache(StaticCache cache) {
+        if(this.cache != null) this.cache.close();
+        this.cache = cache;
+        if(cache != null) cache.watch(roots.stream().map(root -> root.dir).collect(Collectors.toList()));
+        return this;
+    }
+
+    public StaticCache cache() { return cache; }
+
+    @Override
+    public void addStaticFileConfig(StaticFileConfig staticFileConfig) {
+        if(staticFileConfig.getLocation() == Location.EXTERNAL) {
+            try {
+                Path dir = Paths.get(staticFileConfig.getPath()).toRealPath();
+                roots.add(new Root(staticFileConfig.getUrlPathPrefix(), dir));
+                if(cache != null) cache.watch(Collections.singletonList(dir));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Static resource directory with path: '" + staticFileConfig.getPath() + "' does not exist.", e);
+            }
+            return;
+        }
+        classpathRoots.add(new Root(staticFileConfig.getUrlPathPrefix(), staticFileConfig.getPath()));
+        if(delegate == null) delegate = new JettyResourceHandler(config.precompressStaticFiles, config.aliasCheckForStaticFiles);
+        delegate.addStaticFileConfig(staticFileConfig);
+    }
+
+    @Override
+    public boolean handle(HttpServletRequest req, HttpServletResponse res) {
+        String uri = req.getRequestURI().substring(req.getContextPath().length());
+        StaticCache cache = this.cache;
+        try {
+            if(cache != null && cache.serve(uri, req, res)) return true;
+
+            for(Root root : roots) {
+                Path file = root.resolve(uri, config.aliasCheckForStaticFiles == null);
+                if(file == null) continue;
+                String contentType = contentType(file.getFileName().toString());
+                try {
+                    if(cache != null && req.getHeader("Range") == null && Files.size(file) <= cache.maxFileSize()) {
+                        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                        cache.put(uri, Files.readAllBytes(file), file, contentType, fileServer.etag(file, attrs),
+                            attrs.lastModifiedTime().toMillis(), req, res);
+                    } else {
+                        fileServer.send(req, res, file, contentType);
+                    }
+                    return true;
+                } catch (NoSuchFileException e) {
+                    // removed since resolve, try the next root
+                }
+            }
+
+            if(cache != null && req.getHeader("Range") == null) {
+                for(Root root : classpathRoots) {
+                    URL resource = root.resolveClasspath(uri);
+                    if(resource == null) continue;
+                    URLConnection conn = resource.openConnection();
+                    long length = conn.getContentLengthLong();
+                    if(length < 0 || length > cache.maxFileSize()) break;
+                    byte[] content;
+                    try (InputStream in = conn.getInputStream()) {
+                        content = readAll(in, (int) length);
+                    }
+                    long lastModified = conn.getLastModified() > 0 ? conn.getLastModified() : startedAt;
+                    cache.put(uri, content, null, contentType(resource.getPath()), FileServer.etag(content), lastModified, req, res);
+                    return true;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return delegate != null && delegate.handle(req, res);
+    }
+
+    private static String contentType(String fileName) {
+        MediaType mediaType = MediaType.getByExtension(fileName.substring(fileName.lastIndexOf('.') + 1));
+        return mediaType != null ? mediaType.getMIME() : "application/octet-stream";
+    }
+
+    private static byte[] readAll(InputStream in, int length) throws IOException {
+        byte[] content = new byte[length];
+        int read = 0;
+        for(int n; read < length && (n = in.read(content, read, length - read)) != -1; ) read += n;
+        return read == length ? content : Arrays.copyOf(content, read);
+    }
+
+    private static class Root {
+        private final String prefix;
+        private final Path dir;
+        private final String classpathDir;
+
+        Root(String prefix, Path dir) {
+            this.prefix = prefix.endsWith("/") ? prefix : prefix + "/";
+            this.dir = dir;
+            this.classpathDir = null;
+        }
+
+        Root(String prefix, String classpathDir) {
+            this.prefix = prefix.endsWith("/") ? prefix : prefix + "/";
+            this.dir = null;
+            String trimmed = classpathDir.replaceAll("^/+|/+$", "");
+            this.classpathDir = trimmed.isEmpty() ? "" : trimmed + "/";
+        }
+
+        private String relative(String uri) {
+            if(!uri.startsWith(prefix) && !(uri + "/").equals(prefix)) return null;
+            String relative = uri.length() > prefix.length() ? uri.substring(prefix.length()) : "";
+            return relative.indexOf('%') >= 0 ? ContextUtil.INSTANCE.urlDecode(relative) : relative;
+        }
+
+        /**
+         * @return The classpath file the uri points at, or null when there is none
+         */
+        URL resolveClasspath(String uri) {
+            String relative = relative(uri);
+            if(relative == null || relative.contains("..") || relative.contains("\\")) return null;
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if(relative.isEmpty() || relative.endsWith("/")) return loader.getResource(classpathDir + relative + "index.html");
+
+            URL resource = loader.getResource(classpathDir + relative);
+            if(resource == null) return null;
+            if(isDirectory(resource)) return loader.getResource(classpathDir + relative + "/index.html");
+            return resource;
+        }
+
+        private static boolean isDirectory(URL resource) {
+            try {
+                if(resource.getProtocol().equals("file")) return Files.isDirectory(Paths.get(resource.toURI()));
+                URLConnection conn = resource.openConnection();
+                return conn instanceof JarURLConnection && ((JarURLConnection) conn).getJarEntry().isDirectory();
+            } catch (Exception e) {
+                return true;
+            }
+        }
+
+        /**
+         * @return The regular file the uri points at, or null when outside this root
+         */
+        Path resolve(String uri, boolean denyAliases) {
+            String relative = relative(uri);
+            if(relative == null) return null;
+            try {
+                Path file = dir.resolve(relative).normalize();
+                if(!file.startsWith(dir)) return null;
+                if(Files.isDirectory(file)) file = file.resolve("index.html");
+                if(!Files.isRegularFile(file)) return null;
+                if(denyAliases && !file.toRealPath().startsWith(dir)) return null;
+                return file;
+            } catch (InvalidPathException | IOException e) {
+                return null;
+            }
+        }
+    }
+}
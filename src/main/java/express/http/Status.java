@@ -80,6 +80,8 @@ public enum Status {
     _599(599, "Network Connect Timeout Error");
 
 
+    private static final Status[] byCode = new Status[600];
+
     static {
 
         // Check values
@@ -87,6 +89,7 @@ public enum Status {
             if (s.name().charAt(0) != '_') {
                 throw new IllegalStateException("Status code '" + s + "' need to start with underscore.");
             }
+            if (byCode[s.code] == null) byCode[s.code] = s;
         }
     }
 
@@ -99,15 +102,7 @@ public enum Status {
     }
 
     public static Status valueOf(int code) {
-
-        // Find status which matches code
-        for (Status status : values()) {
-            if (status.code == code) {
-                return status;
-            }
-        }
-
-        return null;
+        return code >= 0 && code < byCode.length ? byCode[code] : null;
     }
 
     public String getDescription() {
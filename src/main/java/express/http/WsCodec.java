@@ -0,0 +1,103 @@
+package express.http;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import io.javalin.websocket.WsContext;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author Johan Wirén
+ *
+ * Encodes WebSocket messages in a format picked by the client through the
+ * Sec-WebSocket-Protocol header, ex new WebSocket(url, ["cbor", "json"]).
+ * Binary formats like CBOR, Smile and MessagePack are smaller and cheaper
+ * to encode than JSON, which matters for high-frequency streams.
+ *
+ * The binary codecs are Jackson data formats, and need their module on the
+ * classpath: jackson-dataformat-cbor, jackson-dataformat-smile or
+ * msgpack-jackson. Register codecs with app.useWsCodecs(), and get the
+ * one a connection negotiated with WsCodec.of(ctx).
+ */
+public interface WsCodec {
+
+    /**
+     * Request attribute holding the negotiated codec of a connection
+     */
+    String ATTRIBUTE = "express.ws.codec";
+
+    /**
+     * JSON text frames, used when no other codec was negotiated
+     */
+    WsCodec JSON = new JacksonWsCodec("json", null);
+
+    /**
+     * @return The name of the format in Sec-WebSocket-Protocol, ex "cbor"
+     */
+    String subprotocol();
+
+    /**
+     * @return Whether messages are sent as binary frames, otherwise as UTF-8 text frames
+     */
+    boolean isBinary();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] data, Class<T> klass);
+
+    /**
+     * Encodes the value and sends it without blocking
+     */
+    default void send(Session session, Object value, WriteCallback callback) {
+        send(session, encode(value), callback);
+    }
+
+    /**
+     * Sends an already encoded message without blocking
+     */
+    default void send(Session session, byte[] message, WriteCallback callback) {
+        if(isBinary()) session.getRemote().sendBytes(ByteBuffer.wrap(message), callback);
+        else session.getRemote().sendString(new String(message, StandardCharsets.UTF_8), callback);
+    }
+
+    /**
+     * A codec sending binary frames in any Jackson data format
+     *
+     * @param subprotocol The name clients ask for it by
+     * @param factory     The data format, ex new IonFactory()
+     */
+    static WsCodec jackson(String subprotocol, JsonFactory factory) {
+        return new JacksonWsCodec(subprotocol, factory);
+    }
+
+    /**
+     * @throws IllegalStateException When jackson-dataformat-cbor is not on the classpath
+     */
+    static WsCodec cbor() {
+        return jackson("cbor", JacksonWsCodec.factory("com.fasterxml.jackson.dataformat.cbor.CBORFactory"));
+    }
+
+    /**
+     * @throws IllegalStateException When jackson-dataformat-smile is not on the classpath
+     */
+    static WsCodec smile() {
+        return jackson("smile", JacksonWsCodec.factory("com.fasterxml.jackson.dataformat.smile.SmileFactory"));
+    }
+
+    /**
+     * @throws IllegalStateException When msgpack-jackson is not on the classpath
+     */
+    static WsCodec messagePack() {
+        return jackson("msgpack", JacksonWsCodec.factory("org.msgpack.jackson.dataformat.MessagePackFactory"));
+    }
+
+    /**
+     * @return The codec the connection negotiated, or JSON
+     */
+    static WsCodec of(WsContext ctx) {
+        Object codec = ctx.attribute(ATTRIBUTE);
+        return codec instanceof WsCodec ? (WsCodec) codec : JSON;
+    }
+}
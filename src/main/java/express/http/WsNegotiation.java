@@ -0,0 +1,172 @@
+package express.http;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Johan Wirén
+ *
+ * Servlet filter taking part in WebSocket handshakes. It picks the first
+ * subprotocol offered by the client that has a codec, answers with it in
+ * Sec-WebSocket-Protocol and keeps the codec as a request attribute for
+ * WsCodec.of(ctx).
+ *
+ * It also tunes permessage-deflate by rewriting the extensions offered by
+ * the client before Jetty negotiates them. Without context takeover each
+ * message is compressed on its own, which compresses worse but does not
+ * keep a 32 KB window per connection and direction. Window bits can't be
+ * tuned, as the deflater of the JDK always uses the full window.
+ */
+public class WsNegotiation implements Filter {
+    private static final String PROTOCOL = "Sec-WebSocket-Protocol";
+    private static final String EXTENSIONS = "Sec-WebSocket-Extensions";
+    private static final String DEFLATE = "permessage-deflate";
+
+    private final Map<String, WsCodec> codecs = new LinkedHashMap<>();
+    private boolean deflate = true;
+    private boolean serverContextTakeover = true;
+    private boolean clientContextTakeover = true;
+
+    public WsNegotiation() {
+        codec(WsCodec.JSON);
+    }
+
+    public WsNegotiation codec(WsCodec codec) {
+        codecs.put(codec.subprotocol(), codec);
+        return this;
+    }
+
+    /**
+     * @param enabled Whether clients may compress messages with permessage-deflate
+     */
+    public WsNegotiation deflate(boolean enabled) {
+        this.deflate = enabled;
+        return this;
+    }
+
+    /**
+     * @param enabled Whether the server keeps its compression window between messages
+     */
+    public WsNegotiation serverContextTakeover(boolean enabled) {
+        this.serverContextTakeover = enabled;
+        return this;
+    }
+
+    /**
+     * @param enabled Whether clients keep their compression window between messages
+     */
+    public WsNegotiation clientContextTakeover(boolean enabled) {
+        this.clientContextTakeover = enabled;
+        return this;
+    }
+
+    /**
+     * @param offered The Sec-WebSocket-Protocol header of a handshake, ex "cbor, json"
+     * @return The codec of the first offered subprotocol that has one, or null
+     */
+    public WsCodec negotiate(String offered) {
+        if(offered == null) return null;
+        for(String protocol : offered.split(",")) {
+            WsCodec codec = codecs.get(protocol.trim());
+            if(codec != null) return codec;
+        }
+        return null;
+    }
+
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain) throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        if(!"websocket".equalsIgnoreCase(req.getHeader("Upgrade"))) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        String offered = offered(req);
+        WsCodec codec = negotiate(offered);
+        // with no codec for any offer none is accepted, instead of Javalin echoing the first one
+        if(offered != null && codec == null) headers.put(PROTOCOL.toLowerCase(), "");
+        if(codec != null) {
+            req.setAttribute(WsCodec.ATTRIBUTE, codec);
+            // Javalin answers with the first offered subprotocol, so only the negotiated one is offered
+            headers.put(PROTOCOL.toLowerCase(), codec.subprotocol());
+            ((HttpServletResponse) response).setHeader(PROTOCOL, codec.subprotocol());
+        }
+        String extensions = req.getHeader(EXTENSIONS);
+        String tuned = extensions == null ? null : tune(extensions);
+        if(tuned != null && !tuned.equals(extensions)) headers.put(EXTENSIONS.toLowerCase(), tuned);
+        chain.doFilter(headers.isEmpty() ? req : new Handshake(req, headers), response);
+    }
+
+    private static String offered(HttpServletRequest req) {
+        Enumeration<String> headers = req.getHeaders(PROTOCOL);
+        if(headers == null || !headers.hasMoreElements()) return null;
+        StringBuilder offered = new StringBuilder(headers.nextElement());
+        while(headers.hasMoreElements()) offered.append(',').append(headers.nextElement());
+        return offered.toString();
+    }
+
+    /**
+     * @return The offered extensions with permessage-deflate dropped or given the configured parameters
+     */
+    String tune(String extensions) {
+        StringBuilder tuned = new StringBuilder();
+        for(String offer : extensions.split(",")) {
+            String[] params = offer.split(";");
+            boolean isDeflate = params[0].trim().equalsIgnoreCase(DEFLATE);
+            if(isDeflate && !deflate) continue;
+            if(tuned.length() > 0) tuned.append(", ");
+            tuned.append(offer.trim());
+            if(!isDeflate) continue;
+            if(!serverContextTakeover && !offer.contains("server_no_context_takeover")) tuned.append("; server_no_context_takeover");
+            if(!clientContextTakeover && !offer.contains("client_no_context_takeover")) tuned.append("; client_no_context_takeover");
+        }
+        return tuned.toString();
+    }
+
+    @Override
+    public void init(FilterConfig config) { }
+
+    @Override
+    public void destroy() { }
+
+    /**
+     * The handshake request with the negotiated subprotocol and the tuned extension
+     * offers, an empty value hides the header
+     */
+    private static class Handshake extends HttpServletRequestWrapper {
+        private final Map<String, String> headers;
+
+        Handshake(HttpServletRequest request, Map<String, String> headers) {
+            super(request);
+            this.headers = headers;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            String value = headers.get(name.toLowerCase());
+            if(value == null) return super.getHeader(name);
+            return value.isEmpty() ? null : value;
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            String value = headers.get(name.toLowerCase());
+            if(value == null) return super.getHeaders(name);
+            return value.isEmpty() ? Collections.emptyEnumeration() : Collections.enumeration(Collections.singletonList(value));
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package express.http;
+
+import express.Express;
+import io.javalin.websocket.WsBinaryMessageHandler;
+import io.javalin.websocket.WsCloseHandler;
+import io.javalin.websocket.WsConnectHandler;
+import io.javalin.websocket.WsContext;
+import io.javalin.websocket.WsErrorHandler;
+import io.javalin.websocket.WsHandler;
+import io.javalin.websocket.WsMessageHandler;
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.extensions.IncomingFrames;
+import org.eclipse.jetty.websocket.common.LogicalConnection;
+import org.eclipse.jetty.websocket.common.Parser;
+import org.eclipse.jetty.websocket.common.WebSocketSession;
+import org.eclipse.jetty.websocket.common.io.AbstractWebSocketConnection;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author Johan Wirén
+ *
+ * Keeps track of WebSocket connections and the topics they joined, so
+ * messages can be broadcast to a topic. Connections are spread over shards
+ * of concurrent sets, both overall and per topic, so joining and leaving are
+ * O(1) without a lock shared by all connections, and broadcasts iterate the
+ * sets as they are instead of copying them.
+ *
+ * Connections that have been silent for a while are pinged, and the ones
+ * that don't answer in time are disconnected. Javalin doesn't pass pongs on,
+ * so they are read from Jetty's connection when it allows it, otherwise the
+ * connection is only pinged and never disconnected for being silent, as a
+ * client may well answer pings without sending messages. Closed and unresponsive
+ * connections are swept in bulk, for all registries from a single scheduler
+ * thread.
+ *
+ * <pre>
+ * WsRegistry rooms = new WsRegistry();
+ * app.ws("/rooms/:room", rooms.handler(ws -&gt; {
+ *     ws.onConnect(ctx -&gt; rooms.join(ctx.pathParam("room"), ctx));
+ * }));
+ * rooms.broadcast("lobby", message);
+ * </pre>
+ */
+public class WsRegistry {
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "express-ws-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Map<String, Connection>[] connections;
+    private final Map<String, Topic> topics = new ConcurrentHashMap<>();
+    private final int mask;
+    private final long pingMillis;
+    private final long timeoutMillis;
+    private final int maxPendingMessages;
+    private final ScheduledFuture<?> sweep;
+    private final AtomicLong pinged = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+    private final AtomicLong swept = new AtomicLong();
+
+    public WsRegistry() {
+        this(Runtime.getRuntime().availableProcessors(), 30_000, 10_000, 1024);
+    }
+
+    /**
+     * @param shards             Shards per set, rounded up to a power of two
+     * @param pingMillis         Time a connection may be silent before it is pinged, 0 for no pings
+     * @param timeoutMillis      Time a pinged connection has to answer before it is disconnected
+     * @param maxPendingMessages Messages waiting to be written to a connection before it is closed as too slow
+     */
+    @SuppressWarnings("unchecked")
+    public WsRegistry(int shards, long pingMillis, long timeoutMillis, int maxPendingMessages) {
+        int size = Integer.highestOneBit(Math.max(shards, 1) * 2 - 1);
+        this.connections = (Map<String, Connection>[]) new Map<?, ?>[size];
+        for(int i = 0; i < size; i++) connections[i] = new ConcurrentHashMap<>();
+        this.mask = size - 1;
+        this.pingMillis = pingMillis;
+        this.timeoutMillis = timeoutMillis;
+        this.maxPendingMessages = maxPendingMessages;
+        long period = Math.max(pingMillis > 0 ? Math.min(pingMillis, timeoutMillis) / 2 : timeoutMillis, 10);
+        this.sweep = sweeper.scheduleAtFixedRate(this::sweep, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Wraps a WebSocket config so its connections are registered when they
+     * open and removed when they close, ex app.ws(path, registry.handler(ws -&gt; ...))
+     */
+    public Consumer<WsHandler> handler(Consumer<WsHandler> ws) {
+        return real -> {
+            real.onConnect(this::register);
+            real.onMessage(this::seen);
+            real.onBinaryMessage(this::seen);
+            real.onClose(this::unregister);
+            ws.accept(new WsHandler() {
+                @Override
+                public void onConnect(WsConnectHandler handler) {
+                    real.onConnect(ctx -> {
+                        register(ctx);
+                        handler.handleConnect(ctx);
+                    });
+                }
+
+                @Override
+                public void onMessage(WsMessageHandler handler) {
+                    real.onMessage(ctx -> {
+                        seen(ctx);
+                        handler.handleMessage(ctx);
+                    });
+                }
+
+                @Override
+                public void onBinaryMessage(WsBinaryMessageHandler handler) {
+                    real.onBinaryMessage(ctx -> {
+                        seen(ctx);
+                        handler.handleBinaryMessage(ctx);
+                    });
+                }
+
+                @Override
+                public void onClose(WsCloseHandler handler) {
+                    real.onClose(ctx -> {
+                        unregister(ctx);
+                        handler.handleClose(ctx);
+                    });
+                }
+
+                @Override
+                public void onError(WsErrorHandler handler) {
+                    real.onError(handler);
+                }
+            });
+        };
+    }
+
+    /**
+     * Adds a connection, done by handler() when it opens. Registering it again does nothing.
+     */
+    public void register(WsContext ctx) {
+        register(ctx, true);
+    }
+
+    private Connection register(WsContext ctx, boolean create) {
+        Map<String, Connection> shard = connections[shard(ctx.getSessionId())];
+        Connection connection = shard.get(ctx.getSessionId());
+        if(connection != null || !create || !ctx.session.isOpen()) return connection;
+        Connection created = new Connection(ctx);
+        connection = shard.putIfAbsent(ctx.getSessionId(), created);
+        if(connection != null) return connection;
+        created.observed = listenForFrames(created);
+        return created;
+    }
+
+    /**
+     * Removes a connection from the registry and all its topics, done by handler() when it closes
+     */
+    public void unregister(WsContext ctx) {
+        Connection connection = register(ctx, false);
+        if(connection != null) remove(connection);
+    }
+
+    /**
+     * Adds a connection to a topic, registering it if needed
+     */
+    public void join(String topic, WsContext ctx) {
+        Connection connection = register(ctx, true);
+        if(connection == null) return;
+        connection.topics.add(topic);
+        Topic members;
+        while(!(members = topics.computeIfAbsent(topic, name -> new Topic())).add(connection)) {
+            // the sweep dropped the topic as empty right before, the next lookup creates it again
+            topics.remove(topic, members);
+        }
+        // the connection may have been removed while joining, then it must not stay in the topic
+        if(connection.removed) leave(topic, connection);
+    }
+
+    public void leave(String topic, WsContext ctx) {
+        Connection connection = register(ctx, false);
+        if(connection != null) {
+            connection.topics.remove(topic);
+            leave(topic, connection);
+        }
+    }
+
+    private void leave(String name, Connection connection) {
+        Topic topic = topics.get(name);
+        if(topic != null) topic.remove(connection);
+    }
+
+    /**
+     * Sends a message to every connection in a topic. Strings are sent as they
+     * are, other values are encoded once per codec the connections negotiated.
+     *
+     * @return The number of connections the message was sent to
+     */
+    public int broadcast(String topic, Object message) {
+        Topic members = topics.get(topic);
+        if(members == null) return 0;
+        Message encoded = new Message(message);
+        int sent = 0;
+        for(Set<Connection> shard : members.shards) {
+            for(Connection connection : shard) {
+                if(connection.send(encoded)) sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Sends a message to every registered connection
+     *
+     * @return The number of connections the message was sent to
+     */
+    public int broadcast(Object message) {
+        Message encoded = new Message(message);
+        int sent = 0;
+        for(Map<String, Connection> shard : connections) {
+            for(Connection connection : shard.values()) {
+                if(connection.send(encoded)) sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Calls the consumer with every open connection in a topic
+     */
+    public void forEach(String topic, Consumer<WsContext> consumer) {
+        Topic members = topics.get(topic);
+        if(members == null) return;
+        for(Set<Connection> shard : members.shards) {
+            for(Connection connection : shard) {
+                if(connection.session.isOpen()) consumer.accept(connection.ctx);
+            }
+        }
+    }
+
+    /**
+     * @return The number of registered connections
+     */
+    public int size() {
+        int size = 0;
+        for(Map<String, Connection> shard : connections) size += shard.size();
+        return size;
+    }
+
+    /**
+     * @return The number of connections in a topic
+     */
+    public int size(String topic) {
+        Topic members = topics.get(topic);
+        return members == null ? 0 : Math.max(members.size.get(), 0);
+    }
+
+    /**
+     * @return The number of topics with at least one connection
+     */
+    public int topics() {
+        int count = 0;
+        for(Topic topic : topics.values()) {
+            if(topic.size.get() > 0) count++;
+        }
+        return count;
+    }
+
+    public long pinged() { return pinged.get(); }
+
+    /**
+     * @return Connections disconnected for not answering a ping in time
+     */
+    public long timedOut() { return timedOut.get(); }
+
+    /**
+     * @return Connections closed for having too many messages waiting to be written
+     */
+    public long evicted() { return evicted.get(); }
+
+    /**
+     * @return Connections found closed by the sweep, that were never unregistered
+     */
+    public long swept() { return swept.get(); }
+
+    /**
+     * Stops pinging and sweeping, the connections are left open
+     */
+    public void close() {
+        sweep.cancel(false);
+    }
+
+    private void seen(WsContext ctx) {
+        Connection connection = register(ctx, false);
+        if(connection != null) connection.seen = System.currentTimeMillis();
+    }
+
+    private void remove(Connection connection) {
+        if(!connections[connection.shard].remove(connection.id, connection)) return;
+        connection.removed = true;
+        for(String topic : connection.topics) leave(topic, connection);
+    }
+
+    /**
+     * Every frame read from the client counts as a sign of life, pongs included,
+     * which Javalin doesn't pass on to handlers. Without access to the Jetty
+     * connection only messages count.
+     *
+     * @return False when the frames can't be seen, then silence is no reason to disconnect
+     */
+    private static boolean listenForFrames(Connection connection) {
+        try {
+            Session session = connection.session;
+            if(!(session instanceof WebSocketSession)) return false;
+            LogicalConnection logical = ((WebSocketSession) session).getConnection();
+            if(!(logical instanceof AbstractWebSocketConnection)) return false;
+            Parser parser = ((AbstractWebSocketConnection) logical).getParser();
+            IncomingFrames next = parser.getIncomingFramesHandler();
+            if(next == null) return false;
+            parser.setIncomingFramesHandler(frame -> {
+                connection.seen = System.currentTimeMillis();
+                next.incomingFrame(frame);
+            });
+            return true;
+        } catch (RuntimeException | LinkageError e) {
+            // Jetty's internals changed, fall back to messages
+            return false;
+        }
+    }
+
+    /**
+     * Drops closed connections and empty topics, pings silent connections
+     * and disconnects the ones that left a ping unanswered for too long
+     */
+    private void sweep() {
+        try {
+            long now = System.currentTimeMillis();
+            for(Map<String, Connection> shard : connections) {
+                for(Connection connection : shard.values()) {
+                    if(!connection.session.isOpen()) {
+                        remove(connection);
+                        swept.incrementAndGet();
+                    } else if(connection.pinged > connection.seen && connection.observed) {
+                        if(now - connection.pinged >= timeoutMillis) {
+                            remove(connection);
+                            timedOut.incrementAndGet();
+                            disconnect(connection.session);
+                        }
+                    } else if(pingMillis > 0 && now - Math.max(connection.seen, connection.pinged) >= pingMillis) {
+                        ping(connection, now);
+                    }
+                }
+            }
+            for(Map.Entry<String, Topic> entry : topics.entrySet()) {
+                if(entry.getValue().size.compareAndSet(0, -1)) topics.remove(entry.getKey(), entry.getValue());
+            }
+        } catch (RuntimeException e) {
+            Express.log.warn("Could not sweep WebSocket connections", e);
+        }
+    }
+
+    private void ping(Connection connection, long now) {
+        connection.pinged = now;
+        try {
+            connection.session.getRemote().sendPing(ByteBuffer.allocate(0));
+            pinged.incrementAndGet();
+        } catch (IOException | RuntimeException e) {
+            remove(connection);
+            disconnect(connection.session);
+        }
+    }
+
+    private static void disconnect(Session session) {
+        try {
+            session.disconnect();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private int shard(String sessionId) {
+        int hash = sessionId.hashCode();
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    /**
+     * The connections of a topic, its size turns negative when the sweep drops it as empty
+     */
+    private class Topic {
+        private final Set<Connection>[] shards;
+        private final AtomicInteger size = new AtomicInteger();
+
+        @SuppressWarnings("unchecked")
+        Topic() {
+            this.shards = (Set<Connection>[]) new Set<?>[connections.length];
+            for(int i = 0; i < shards.length; i++) shards[i] = ConcurrentHashMap.newKeySet();
+        }
+
+        /**
+         * @return False when the topic was dropped and must not be added to
+         */
+        boolean add(Connection connection) {
+            int current;
+            do {
+                current = size.get();
+                if(current < 0) return false;
+            } while(!size.compareAndSet(current, current + 1));
+            if(!shards[connection.shard].add(connection)) size.decrementAndGet();
+            return true;
+        }
+
+        void remove(Connection connection) {
+            if(shards[connection.shard].remove(connection)) size.decrementAndGet();
+        }
+    }
+
+    /**
+     * A message encoded lazily, once for text and once per binary codec
+     */
+    private static class Message {
+        private final Object value;
+        private final boolean raw;
+        private String text;
+        private Map<WsCodec, ByteBuffer> binary;
+
+        Message(Object value) {
+            this.value = value;
+            this.raw = value instanceof String;
+            if(raw) this.text = (String) value;
+        }
+
+        void send(Connection connection) {
+            if(raw || !connection.codec.isBinary()) {
+                if(text == null) text = new String(WsCodec.JSON.encode(value), StandardCharsets.UTF_8);
+                connection.session.getRemote().sendString(text, connection);
+            } else {
+                if(binary == null) binary = new HashMap<>(4);
+                ByteBuffer encoded = binary.computeIfAbsent(connection.codec, codec -> ByteBuffer.wrap(codec.encode(value)));
+                connection.session.getRemote().sendBytes(encoded.duplicate(), connection);
+            }
+        }
+    }
+
+    private class Connection implements WriteCallback {
+        private final String id;
+        private final int shard;
+        private final WsContext ctx;
+        private final Session session;
+        private final WsCodec codec;
+        private final Set<String> topics = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile long seen = System.currentTimeMillis();
+        private volatile long pinged;
+        private volatile boolean removed;
+        // whether pongs update seen, see listenForFrames
+        private volatile boolean observed;
+
+        Connection(WsContext ctx) {
+            this.id = ctx.getSessionId();
+            this.shard = WsRegistry.this.shard(id);
+            this.ctx = ctx;
+            this.session = ctx.session;
+            this.codec = WsCodec.of(ctx);
+        }
+
+        boolean send(Message message) {
+            if(!session.isOpen()) return false;
+            if(pending.incrementAndGet() > maxPendingMessages) {
+                pending.decrementAndGet();
+                remove(this);
+                evicted.incrementAndGet();
+                session.close(StatusCode.TRY_AGAIN_LATER, "Too slow");
+                return false;
+            }
+            try {
+                message.send(this);
+                return true;
+            } catch (RuntimeException e) {
+                pending.decrementAndGet();
+                remove(this);
+                return false;
+            }
+        }
+
+        @Override
+        public void writeSuccess() {
+            pending.decrementAndGet();
+        }
+
+        @Override
+        public void writeFailed(Throwable x) {
+            pending.decrementAndGet();
+            remove(this);
+        }
+    }
+}
@@ -79,7 +79,7 @@ const actions = {
         const [idField, collection] = Object.entries(data)[0]
         
         store.commit('addCollIdFields', {coll, idField})
-        store.commit('addCollection', {coll, collection: JSON.parse(collection)})
+        store.commit('addCollection', {coll, collection: typeof collection === 'string' ? JSON.parse(collection) : collection})
         
         if(coll === store.state.activeColl || Object.keys(store.state.collections).length === store.state.collNames.length) {
             store.commit('setFetchingColls', false)
@@ -0,0 +1,142 @@
+package express.database;
+
+import nosqlite.utilities.WatchData;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ChangeBatcherTest {
+    private static final long LONG_WINDOW = 60_000;
+
+    private final List<List<WatchData>> emitted = Collections.synchronizedList(new ArrayList<>());
+
+    private ChangeBatcher batcher(long windowMillis, int maxBatchSize) {
+        return new ChangeBatcher(windowMillis, maxBatchSize, Collections.singletonMap("User", "id"),
+            (coll, batch) -> emitted.add(batch));
+    }
+
+    private static WatchData change(String event, Object... docs) {
+        WatchData watchData = new WatchData();
+        watchData.model = "User";
+        watchData.event = event;
+        watchData.data = new ArrayList<>(Arrays.asList(docs));
+        return watchData;
+    }
+
+    private static Map<String, Object> user(int id, String name) {
+        Map<String, Object> user = new HashMap<>();
+        user.put("id", id);
+        user.put("name", name);
+        return user;
+    }
+
+    /**
+     * @return The events and documents emitted, flattened in order
+     */
+    private List<String> flattened() {
+        List<String> out = new ArrayList<>();
+        synchronized (emitted) {
+            for(List<WatchData> batch : emitted) {
+                for(WatchData watchData : batch) {
+                    for(Object doc : watchData.data) {
+                        Map<?, ?> user = (Map<?, ?>) doc;
+                        out.add(watchData.event + " " + user.get("id") + " " + user.get("name"));
+                    }
+                }
+            }
+        }
+        return out;
+    }
+
+    @Test
+    public void updatesToAPendingDocumentAreCoalesced() {
+        ChangeBatcher batcher = batcher(LONG_WINDOW, 100);
+        batcher.add("User", change("insert", user(1, "a")));
+        batcher.add("User", change("update", user(1, "b")));
+        batcher.add("User", change("update", user(2, "c")));
+        batcher.add("User", change("update", user(1, "d")));
+        batcher.flush();
+
+        assertEquals(1, emitted.size());
+        assertEquals(Arrays.asList("insert 1 d", "update 2 c"), flattened());
+        assertEquals(4, batcher.changes());
+        assertEquals(2, batcher.coalesced());
+        assertEquals(1, batcher.batches());
+    }
+
+    @Test
+    public void deletesEndCoalescing() {
+        ChangeBatcher batcher = batcher(LONG_WINDOW, 100);
+        batcher.add("User", change("insert", user(1, "a")));
+        batcher.add("User", change("delete", user(1, "a")));
+        batcher.add("User", change("update", user(1, "b")));
+        batcher.flush();
+
+        assertEquals(Arrays.asList("insert 1 a", "delete 1 a", "update 1 b"), flattened());
+        assertEquals(0, batcher.coalesced());
+    }
+
+    @Test
+    public void documentsWithoutIdsAreNotCoalesced() {
+        ChangeBatcher batcher = new ChangeBatcher(LONG_WINDOW, 100, Collections.emptyMap(), (coll, batch) -> emitted.add(batch));
+        batcher.add("User", change("update", user(1, "a")));
+        batcher.add("User", change("update", user(1, "b")));
+        batcher.flush();
+
+        assertEquals(Arrays.asList("update 1 a", "update 1 b"), flattened());
+    }
+
+    @Test
+    public void largeSavesAreSplitAtMaxBatchSize() {
+        ChangeBatcher batcher = batcher(LONG_WINDOW, 7);
+        Object[] docs = new Object[30];
+        for(int i = 0; i < docs.length; i++) docs[i] = user(i, "u" + i);
+        batcher.add("User", change("insert", docs));
+
+        assertEquals(4, emitted.size());
+        for(List<WatchData> batch : emitted) assertEquals(7, batch.get(0).data.size());
+        batcher.flush();
+        assertEquals(5, emitted.size());
+        assertEquals(2, emitted.get(4).get(0).data.size());
+        assertEquals(7, batcher.largestBatch());
+
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < docs.length; i++) expected.add("insert " + i + " u" + i);
+        assertEquals(expected, flattened());
+    }
+
+    @Test
+    public void windowFlushesOnItsOwn() throws InterruptedException {
+        ChangeBatcher batcher = batcher(20, 100);
+        batcher.add("User", change("insert", user(1, "a")));
+        for(int i = 0; i < 100 && emitted.isEmpty(); i++) Thread.sleep(20);
+        assertEquals(Collections.singletonList("insert 1 a"), flattened());
+    }
+
+    @Test
+    public void batchesAreEmittedInOrder() {
+        ChangeBatcher batcher = batcher(1, 7);
+        int count = 3000;
+        for(int i = 0; i < count; i++) batcher.add("User", change("insert", user(i, "u" + i)));
+        // waits for the emits drained before it, from the caller or the timer
+        batcher.flush();
+
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < count; i++) expected.add("insert " + i + " u" + i);
+        assertEquals(expected, flattened());
+        synchronized (emitted) {
+            for(List<WatchData> batch : emitted) {
+                int size = 0;
+                for(WatchData watchData : batch) size += watchData.data.size();
+                assertEquals(true, size <= 7);
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package express.database;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.javalin.plugin.json.JavalinJackson;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FilterIndexTest {
+
+    private static JsonNode doc(String json) {
+        try {
+            return JavalinJackson.getObjectMapper().readTree(json.replace('\'', '"'));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(json, e);
+        }
+    }
+
+    private static FilterIndex<String> index(String... filters) {
+        FilterIndex<String> index = new FilterIndex<>();
+        for(String filter : filters) index.add(filter, WatchFilter.compile(filter));
+        return index;
+    }
+
+    private static Set<String> set(String... values) {
+        return new HashSet<>(Arrays.asList(values));
+    }
+
+    @Test
+    public void equalityIsLookedUpByValue() {
+        FilterIndex<String> index = index("age==30", "age==40", "name==John");
+        assertEquals(set("age==30"), index.candidates(doc("{'age': 30}")));
+        assertEquals(set("age==30"), index.candidates(doc("{'age': 30.0}")));
+        assertEquals(set("age==40", "name==John"), index.candidates(doc("{'age': 40, 'name': 'John'}")));
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'age': 31}")));
+    }
+
+    @Test
+    public void numbersAreKeyedByValue() {
+        FilterIndex<String> index = index("age==30.0");
+        assertEquals(set("age==30.0"), index.candidates(doc("{'age': 30}")));
+    }
+
+    @Test
+    public void rangesRespectBounds() {
+        FilterIndex<String> index = index("age>30", "age>=30", "age<30", "age<=30");
+        assertEquals(set("age>=30", "age<=30"), index.candidates(doc("{'age': 30}")));
+        assertEquals(set("age>30", "age>=30"), index.candidates(doc("{'age': 31}")));
+        assertEquals(set("age<30", "age<=30"), index.candidates(doc("{'age': 29}")));
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'name': 'John'}")));
+    }
+
+    @Test
+    public void inListsAreIndexedByEveryValue() {
+        FilterIndex<String> index = index("age==[20, 30]");
+        assertEquals(set("age==[20, 30]"), index.candidates(doc("{'age': 20}")));
+        assertEquals(set("age==[20, 30]"), index.candidates(doc("{'age': 30}")));
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'age': 25}")));
+    }
+
+    @Test
+    public void arraysAreLookedUpByEveryElement() {
+        FilterIndex<String> index = index("tags==red", "scores>90");
+        assertEquals(set("tags==red", "scores>90"), index.candidates(doc("{'tags': ['blue', 'red'], 'scores': [50, 95]}")));
+    }
+
+    @Test
+    public void nestedFields() {
+        FilterIndex<String> index = index("address.city==Stockholm");
+        assertEquals(set("address.city==Stockholm"), index.candidates(doc("{'address': {'city': 'Stockholm'}}")));
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'address': {'city': 'Oslo'}}")));
+    }
+
+    @Test
+    public void filtersWithoutIndexableConditionsAreAlwaysCandidates() {
+        FilterIndex<String> index = index("name!=John", "name=~J%", "!(age==30)");
+        assertEquals(set("name!=John", "name=~J%", "!(age==30)"), index.candidates(doc("{'age': 30}")));
+    }
+
+    @Test
+    public void andIsIndexedByOneSidePreferringEquality() {
+        FilterIndex<String> index = index("age>30 && name==John");
+        // the candidate still has to be tested, it only passed the equality
+        assertEquals(set("age>30 && name==John"), index.candidates(doc("{'age': 20, 'name': 'John'}")));
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'age': 40, 'name': 'Jane'}")));
+    }
+
+    @Test
+    public void orIsIndexedByEverySide() {
+        FilterIndex<String> index = index("age==30 || name==John");
+        assertEquals(set("age==30 || name==John"), index.candidates(doc("{'age': 30}")));
+        assertEquals(set("age==30 || name==John"), index.candidates(doc("{'name': 'John'}")));
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'age': 31, 'name': 'Jane'}")));
+    }
+
+    @Test
+    public void orWithAnUnindexableSideIsAlwaysACandidate() {
+        FilterIndex<String> index = index("age==30 || name!=John");
+        assertEquals(set("age==30 || name!=John"), index.candidates(doc("{'age': 31}")));
+    }
+
+    @Test
+    public void candidatesIncludeEveryMatch() {
+        String[] filters = { "age==30", "age>25", "age<=30 && name==John", "name=~Jo%", "tags==red || age<10" };
+        FilterIndex<String> index = index(filters);
+        String[] docs = { "{'age': 30, 'name': 'John'}", "{'age': 5}", "{'age': 26, 'tags': ['red']}", "{'name': 'Joe'}", "{}" };
+        for(String json : docs) {
+            JsonNode doc = doc(json);
+            Set<String> candidates = index.candidates(doc);
+            for(String filter : filters) {
+                if(WatchFilter.compile(filter).matches(doc)) assertTrue(filter + " for " + json, candidates.contains(filter));
+            }
+        }
+    }
+
+    @Test
+    public void removedFiltersAreNoLongerCandidates() {
+        FilterIndex<String> index = index("age==30", "age>20", "name!=John");
+        assertEquals(3, index.size());
+        index.remove("age==30");
+        index.remove("name!=John");
+        assertEquals(set("age>20"), index.candidates(doc("{'age': 30}")));
+        index.remove("age>20");
+        assertEquals(0, index.size());
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'age': 30}")));
+    }
+
+    @Test
+    public void addingTwiceIndexesOnce() {
+        FilterIndex<String> index = index("age==30");
+        index.add("age==30", WatchFilter.compile("age==30"));
+        assertEquals(1, index.size());
+        index.remove("age==30");
+        assertEquals(Collections.emptySet(), index.candidates(doc("{'age': 30}")));
+    }
+}
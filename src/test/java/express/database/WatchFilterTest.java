@@ -0,0 +1,145 @@
+package express.database;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import io.javalin.plugin.json.JavalinJackson;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WatchFilterTest {
+
+    private static JsonNode doc(String json) {
+        try {
+            return JavalinJackson.getObjectMapper().readTree(json.replace('\'', '"'));
+        } catch (Exception e) {
+            throw new IllegalArgumentException(json, e);
+        }
+    }
+
+    private static boolean matches(String filter, String json) {
+        return WatchFilter.compile(filter).matches(doc(json));
+    }
+
+    @Test
+    public void equalityComparesNumbersAsNumbers() {
+        assertTrue(matches("age==30", "{'age': 30}"));
+        assertTrue(matches("age==30", "{'age': 30.0}"));
+        assertTrue(matches("age==30", "{'age': '30'}"));
+        assertFalse(matches("age==30", "{'age': 31}"));
+        assertTrue(matches("name==John", "{'name': 'John'}"));
+        assertFalse(matches("name==John", "{'name': 'john'}"));
+    }
+
+    @Test
+    public void notEqual() {
+        assertTrue(matches("name!=John", "{'name': 'Jane'}"));
+        assertFalse(matches("name!=John", "{'name': 'John'}"));
+    }
+
+    @Test
+    public void missingFieldsNeverMatch() {
+        assertFalse(matches("age==30", "{'name': 'John'}"));
+        assertFalse(matches("age!=30", "{'name': 'John'}"));
+        assertFalse(matches("age>30", "{'age': null}"));
+    }
+
+    @Test
+    public void rangesCompareNumbersAsNumbersAndTextAsText() {
+        assertTrue(matches("age>30", "{'age': 31}"));
+        assertFalse(matches("age>30", "{'age': 30}"));
+        assertTrue(matches("age>=30", "{'age': 30}"));
+        assertTrue(matches("age<30", "{'age': 9}"));
+        assertTrue(matches("age<=30", "{'age': 30}"));
+        assertFalse(matches("age<=30", "{'age': 100}"));
+        assertFalse(matches("age>30", "{'age': 'old'}"));
+        assertTrue(matches("name>M", "{'name': 'Nina'}"));
+        assertFalse(matches("name>M", "{'name': 'Anna'}"));
+    }
+
+    @Test
+    public void likeUsesPercentAsWildcardIgnoringCase() {
+        assertTrue(matches("name=~jo%", "{'name': 'John'}"));
+        assertTrue(matches("name=~%OH%", "{'name': 'John'}"));
+        assertFalse(matches("name=~jo%", "{'name': 'Ajo'}"));
+        assertFalse(matches("name=~j.n", "{'name': 'John'}"));
+    }
+
+    @Test
+    public void inLists() {
+        assertTrue(matches("age==[20, 30, 40]", "{'age': 30}"));
+        assertFalse(matches("age==[20, 30, 40]", "{'age': 35}"));
+        assertTrue(matches("age!=[20, 30]", "{'age': 35}"));
+        assertFalse(matches("age!=[20, 30]", "{'age': 20}"));
+    }
+
+    @Test
+    public void quotedValues() {
+        assertTrue(matches("name=='John Doe'", "{'name': 'John Doe'}"));
+        assertTrue(matches("name==\"30\"", "{'name': '30'}"));
+    }
+
+    @Test
+    public void dotPathsReachNestedFields() {
+        assertTrue(matches("address.city==Stockholm", "{'address': {'city': 'Stockholm'}}"));
+        assertFalse(matches("address.city==Stockholm", "{'address': 'Stockholm'}"));
+    }
+
+    @Test
+    public void arraysMatchWhenAnyElementDoes() {
+        assertTrue(matches("tags==red", "{'tags': ['blue', 'red']}"));
+        assertFalse(matches("tags==red", "{'tags': ['blue']}"));
+        assertTrue(matches("scores>90", "{'scores': [50, 95]}"));
+    }
+
+    @Test
+    public void andBindsTighterThanOr() {
+        String filter = "a==1 || b==2 && c==3";
+        assertTrue(matches(filter, "{'a': 1}"));
+        assertTrue(matches(filter, "{'b': 2, 'c': 3}"));
+        assertFalse(matches(filter, "{'b': 2, 'c': 4}"));
+        assertFalse(matches("(a==1 || b==2) && c==3", "{'a': 1}"));
+        assertTrue(matches("(a==1 || b==2) && c==3", "{'a': 1, 'c': 3}"));
+    }
+
+    @Test
+    public void not() {
+        assertTrue(matches("!(age>30)", "{'age': 20}"));
+        assertFalse(matches("!age>30", "{'age': 40}"));
+        assertTrue(matches("!age>30 && name==John", "{'age': 20, 'name': 'John'}"));
+    }
+
+    @Test
+    public void matchesObjects() {
+        WatchFilter filter = WatchFilter.compile("age>30");
+        assertTrue(filter.matches((Object) Collections.singletonMap("age", 40)));
+        assertFalse(filter.matches((Object) Collections.singletonMap("age", 20)));
+    }
+
+    @Test
+    public void expressionIsTrimmed() {
+        assertEquals("age>30", WatchFilter.compile("  age>30 ").expression());
+    }
+
+    @Test
+    public void invalidFiltersAreRejected() {
+        for(String filter : new String[]{ null, "", "  ", "age", "age>", "==30", "(age>30", "age>30)", "age>30 &&" }) {
+            try {
+                WatchFilter.compile(filter);
+                fail("Expected \"" + filter + "\" to be rejected");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void equalKeysForEqualNumbers() {
+        assertEquals(WatchFilter.key("30"), WatchFilter.key("30.0"));
+        assertEquals(WatchFilter.key("3e1"), WatchFilter.key("30"));
+        assertEquals("John", WatchFilter.key("John"));
+    }
+}
@@ -0,0 +1,77 @@
+package express.http;
+
+import io.javalin.Javalin;
+import io.javalin.core.PathParser;
+import io.javalin.http.HandlerType;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CompiledRouterTest {
+    private static final String[] PATHS = {
+        "/", "/users", "/users/", "/users/a", "/users/a/", "/users/a/b", "/users/new", "/users/new/",
+        "/a", "/a/", "/a/c", "/a/x/c", "/a/x/y/c", "/a/x/c/", "/a/x", "/files", "/files/", "/files/x/y.txt",
+        "/posts/1/comments", "/posts/1/comments/2", "/posts/1/comments/", "/other",
+    };
+
+    private static CompiledRouter router(String... routes) {
+        CompiledRouter router = new CompiledRouter();
+        for(String route : routes) router.add(HandlerType.GET, route, (req, res) -> {});
+        router.mount(Javalin.create());
+        return router;
+    }
+
+    /**
+     * @return The first route Javalin would match, in the order they were added
+     */
+    private static String expected(String[] routes, String path) {
+        for(String route : routes) {
+            if(new PathParser(route, true).matches(path)) return route;
+        }
+        return null;
+    }
+
+    private static void assertMatchesLikeJavalin(String... routes) {
+        CompiledRouter router = router(routes);
+        for(String path : PATHS) {
+            CompiledRouter.Route found = router.find(HandlerType.GET, path);
+            assertEquals(path, expected(routes, path), found == null ? null : found.path());
+        }
+    }
+
+    @Test
+    public void wildcardsNeedASegment() {
+        assertMatchesLikeJavalin("/users/*", "/users");
+        assertMatchesLikeJavalin("/files/*");
+        assertMatchesLikeJavalin("/*", "/");
+    }
+
+    @Test
+    public void wildcardsInTheMiddle() {
+        assertMatchesLikeJavalin("/a/*/c", "/a/c", "/a/:id");
+    }
+
+    @Test
+    public void staticRoutesAfterParams() {
+        assertMatchesLikeJavalin("/users/:id", "/users/new", "/users");
+        assertMatchesLikeJavalin("/users/new", "/users/:id", "/users/*");
+    }
+
+    @Test
+    public void firstAddedRouteWins() {
+        assertMatchesLikeJavalin("/posts/:id/comments/:comment", "/posts/:id/*", "/posts/:id/comments", "*");
+        assertMatchesLikeJavalin("*", "/users", "/users/:id");
+        assertMatchesLikeJavalin("/:a", "/users/*", "/:a/:b");
+    }
+
+    @Test
+    public void staticRouteSurvivesAWildcardBelowIt() {
+        CompiledRouter router = router("/users/*", "/users");
+        assertNotNull(router.find(HandlerType.GET, "/users"));
+        assertEquals("/users", router.find(HandlerType.GET, "/users").path());
+        assertEquals("/users/*", router.find(HandlerType.GET, "/users/").path());
+        assertNull(router.find(HandlerType.POST, "/users"));
+    }
+}
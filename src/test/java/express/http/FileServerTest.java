@@ -0,0 +1,69 @@
+package express.http;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FileServerTest {
+
+    private static void assertRanges(List<long[]> ranges, long[]... expected) {
+        assertEquals(expected.length, ranges.size());
+        for(int i = 0; i < expected.length; i++) assertArrayEquals(expected[i], ranges.get(i));
+    }
+
+    @Test
+    public void closedRange() {
+        assertRanges(FileServer.parseRanges("bytes=0-4", 10), new long[]{ 0, 4 });
+        assertRanges(FileServer.parseRanges("bytes=3-3", 10), new long[]{ 3, 3 });
+    }
+
+    @Test
+    public void openRangeRunsToTheEnd() {
+        assertRanges(FileServer.parseRanges("bytes=5-", 10), new long[]{ 5, 9 });
+    }
+
+    @Test
+    public void suffixRange() {
+        assertRanges(FileServer.parseRanges("bytes=-3", 10), new long[]{ 7, 9 });
+        assertRanges(FileServer.parseRanges("bytes=-20", 10), new long[]{ 0, 9 });
+    }
+
+    @Test
+    public void endIsClampedToTheFile() {
+        assertRanges(FileServer.parseRanges("bytes=2-100", 10), new long[]{ 2, 9 });
+    }
+
+    @Test
+    public void multipleRanges() {
+        assertRanges(FileServer.parseRanges("bytes=0-1, 5-9", 10), new long[]{ 0, 1 }, new long[]{ 5, 9 });
+    }
+
+    @Test
+    public void unsatisfiableRangesAreSkipped() {
+        assertTrue(FileServer.parseRanges("bytes=20-30", 10).isEmpty());
+        assertTrue(FileServer.parseRanges("bytes=-0", 10).isEmpty());
+        assertTrue(FileServer.parseRanges("bytes=0-4", 0).isEmpty());
+        assertRanges(FileServer.parseRanges("bytes=20-30, 0-1", 10), new long[]{ 0, 1 });
+    }
+
+    @Test
+    public void invalidHeadersAreIgnored() {
+        assertNull(FileServer.parseRanges("items=0-4", 10));
+        assertNull(FileServer.parseRanges("bytes=5-2", 10));
+        assertNull(FileServer.parseRanges("bytes=abc", 10));
+        assertNull(FileServer.parseRanges("bytes=a-b", 10));
+        assertNull(FileServer.parseRanges("bytes=0-1, x", 10));
+    }
+
+    @Test
+    public void tooManyRangesAreIgnored() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for(int i = 1; i < 17; i++) header.append(',').append(i).append('-').append(i);
+        assertNull(FileServer.parseRanges(header.toString(), 100));
+    }
+}
@@ -0,0 +1,99 @@
+package express.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    @Test
+    public void smallValuesHaveABucketEach() {
+        for(int value = 0; value < 16; value++) {
+            assertEquals(value, Histogram.index(value));
+            assertEquals(value, Histogram.upperBound(value));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        int last = Histogram.index((1L << 45) - 1);
+        for(int i = 0; i < last; i++) {
+            long upper = Histogram.upperBound(i);
+            assertEquals(i, Histogram.index(upper));
+            assertEquals(i + 1, Histogram.index(upper + 1));
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinSixPercent() {
+        for(long value = 1; value < (1L << 45); value = value * 3 / 2 + 1) {
+            long upper = Histogram.upperBound(Histogram.index(value));
+            assertTrue(value + " in bucket up to " + upper, upper >= value);
+            assertTrue(value + " in bucket up to " + upper, upper - value <= value / 16);
+        }
+    }
+
+    @Test
+    public void snapshotSummarizesValues() {
+        Histogram histogram = new Histogram();
+        for(int value = 1; value <= 1000; value++) histogram.record(value);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(1000, snapshot.count());
+        assertEquals(500_500, snapshot.sum());
+        assertEquals(1000, snapshot.max());
+        assertEquals(500.5, snapshot.mean(), 0.001);
+        assertEquals(15, snapshot.countAtOrBelow(15));
+        assertEquals(1000, snapshot.countAtOrBelow(1000));
+    }
+
+    @Test
+    public void quantilesAreWithinTheBucketPrecision() {
+        Histogram histogram = new Histogram();
+        for(int value = 1; value <= 1000; value++) histogram.record(value);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+
+        assertEquals(500, snapshot.valueAt(0.5), 500 / 16.0);
+        assertEquals(990, snapshot.valueAt(0.99), 990 / 16.0);
+        assertEquals(1000, snapshot.valueAt(1));
+        assertTrue(snapshot.valueAt(0.5) >= 500);
+    }
+
+    @Test
+    public void emptySnapshot() {
+        Histogram.Snapshot snapshot = new Histogram().snapshot();
+        assertEquals(0, snapshot.count());
+        assertEquals(0, snapshot.valueAt(0.99));
+        assertEquals(0, snapshot.mean(), 0);
+    }
+
+    @Test
+    public void negativeValuesCountAsZero() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        assertEquals(1, histogram.snapshot().countAtOrBelow(0));
+    }
+
+    @Test
+    public void hugeValuesAreRecorded() {
+        Histogram histogram = new Histogram();
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(1, histogram.snapshot().count());
+        assertEquals(Long.MAX_VALUE, histogram.snapshot().max());
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws InterruptedException {
+        Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for(int i = 0; i < 10_000; i++) histogram.record(i);
+            });
+            threads[t].start();
+        }
+        for(Thread thread : threads) thread.join();
+        assertEquals(80_000, histogram.snapshot().count());
+    }
+}
@@ -0,0 +1,87 @@
+package express.http;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void allowsABurstThenLimits() {
+        RateLimiter limiter = new RateLimiter(10, 3);
+        long now = 5 * SECOND;
+        assertEquals(0, limiter.acquire("a", now));
+        assertEquals(0, limiter.acquire("a", now));
+        assertEquals(0, limiter.acquire("a", now));
+        assertEquals(SECOND / 10, limiter.acquire("a", now));
+    }
+
+    @Test
+    public void waitShrinksUntilTheNextToken() {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        long now = 5 * SECOND;
+        assertEquals(0, limiter.acquire("a", now));
+        assertEquals(SECOND / 10, limiter.acquire("a", now));
+        assertEquals(SECOND / 20, limiter.acquire("a", now + SECOND / 20));
+        assertEquals(0, limiter.acquire("a", now + SECOND / 10));
+    }
+
+    @Test
+    public void limitedRequestsTakeNoToken() {
+        RateLimiter limiter = new RateLimiter(10, 1);
+        long now = 5 * SECOND;
+        limiter.acquire("a", now);
+        for(int i = 0; i < 100; i++) assertTrue(limiter.acquire("a", now) > 0);
+        assertEquals(0, limiter.acquire("a", now + SECOND / 10));
+    }
+
+    @Test
+    public void sustainsTheRateAfterTheBurst() {
+        RateLimiter limiter = new RateLimiter(10, 5);
+        long start = 5 * SECOND;
+        int allowed = 0;
+        // a request every millisecond for two seconds
+        for(long t = 0; t < 2 * SECOND; t += SECOND / 1000) {
+            if(limiter.acquire("a", start + t) == 0) allowed++;
+        }
+        assertEquals(5 + 20, allowed, 1);
+    }
+
+    @Test
+    public void idleClientsRefillToTheBurstOnly() {
+        RateLimiter limiter = new RateLimiter(10, 3);
+        long now = 5 * SECOND;
+        limiter.acquire("a", now);
+        now += 60 * SECOND;
+        for(int i = 0; i < 3; i++) assertEquals(0, limiter.acquire("a", now));
+        assertTrue(limiter.acquire("a", now) > 0);
+    }
+
+    @Test
+    public void clientsHaveBucketsOfTheirOwn() {
+        RateLimiter limiter = new RateLimiter(1, 1);
+        long now = 5 * SECOND;
+        assertEquals(0, limiter.acquire("a", now));
+        assertTrue(limiter.acquire("a", now) > 0);
+        assertEquals(0, limiter.acquire("b", now));
+    }
+
+    @Test
+    public void keysAreBounded() {
+        RateLimiter limiter = new RateLimiter(1, 1).maxKeys(32);
+        for(int i = 0; i < 1000; i++) limiter.acquire("client" + i, SECOND);
+        assertTrue(limiter.keys() <= 32);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroRate() {
+        new RateLimiter(0, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsZeroBurst() {
+        new RateLimiter(1, 0);
+    }
+}